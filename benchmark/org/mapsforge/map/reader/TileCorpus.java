@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Deterministic corpus of tiles for TileDecoderBenchmark, used when no
+ * recorded tiles are given so that runs on different machines and commits
+ * decode the same bytes.
+ *
+ * The tiles are generated from a fixed seed and mimic the three kinds of area
+ * a recorded corpus should cover, at zoom levels 8 to 16: dense city with
+ * many small buildings, named streets and POIs, rural areas with long roads
+ * and large landuse polygons with holes, and ocean with a few big water
+ * polygons. The layout of the fields follows the tiles of the tile server:
+ * dictionary tags and tile specific strings, delta encoded coordinates on the
+ * 4096 units tile grid.
+ */
+final class TileCorpus {
+	final static int CITY = 0;
+	final static int RURAL = 1;
+	final static int OCEAN = 2;
+
+	final static int[] ZOOMS = { 8, 10, 12, 14, 16 };
+
+	/** tiles per kind of area and zoom level */
+	final static int TILES = 4;
+
+	private final static long SEED = 0x5eed;
+
+	private final static int EXTENT = 4096;
+
+	private final static int TAG_TILE_VERSION = 1;
+	private final static int TAG_TILE_NUM_TAGS = 11;
+	private final static int TAG_TILE_NUM_KEYS = 12;
+	private final static int TAG_TILE_NUM_VALUES = 13;
+	private final static int TAG_TILE_TAG_KEYS = 14;
+	private final static int TAG_TILE_TAG_VALUES = 15;
+	private final static int TAG_TILE_TAGS = 16;
+	private final static int TAG_TILE_LINE = 21;
+	private final static int TAG_TILE_POLY = 22;
+	private final static int TAG_TILE_POINT = 23;
+	private final static int TAG_ELEM_NUM_INDICES = 1;
+	private final static int TAG_ELEM_NUM_TAGS = 2;
+	private final static int TAG_ELEM_TAGS = 11;
+	private final static int TAG_ELEM_INDEX = 12;
+	private final static int TAG_ELEM_COORDS = 13;
+	private final static int TAG_ELEM_LAYER = 21;
+
+	private final static int WIRE_VARINT = 0;
+	private final static int WIRE_BYTES = 2;
+
+	private final static String[] STREETS = { "Hauptstraße", "Bahnhofstraße",
+	        "Rue de la République", "High Street", "Calle Mayor", "Via Roma",
+	        "Ulica Długa", "Øster Allé", "Κεντρική οδός", "中山路" };
+
+	private final static String[] ROADS = { "highway", "primary", "highway", "secondary",
+	        "highway", "tertiary", "highway", "residential", "highway", "service",
+	        "highway", "track" };
+
+	private final static String[] LANDUSE = { "landuse", "farmland", "landuse", "meadow",
+	        "landuse", "forest", "landuse", "residential" };
+
+	private final static String[] AMENITIES = { "amenity", "restaurant", "amenity", "cafe",
+	        "amenity", "school" };
+
+	private TileCorpus() {
+	}
+
+	/**
+	 * @return the tiles of the corpus, by kind of area and zoom level
+	 */
+	static List<TileDecoderBenchmark.Sample> create() {
+		List<TileDecoderBenchmark.Sample> samples = new ArrayList<TileDecoderBenchmark.Sample>();
+		Random random = new Random(SEED);
+
+		for (int kind = CITY; kind <= OCEAN; kind++) {
+			for (int zoom : ZOOMS) {
+				// somewhere in europe for land, the atlantic for ocean
+				long x = (kind == OCEAN ? 110L : 136L) << (zoom - 8);
+				long y = 85L << (zoom - 8);
+				for (int i = 0; i < TILES; i++) {
+					Tile tile = new Tile(x + i, y + kind, (byte) zoom);
+					samples.add(new TileDecoderBenchmark.Sample(tile,
+					        create(kind, zoom, random)));
+				}
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * @return CRC32 of the tiles, to check that two runs used the same corpus
+	 */
+	static long checksum(List<TileDecoderBenchmark.Sample> samples) {
+		CRC32 crc = new CRC32();
+		for (TileDecoderBenchmark.Sample s : samples)
+			crc.update(s.data, 0, s.data.length);
+		return crc.getValue();
+	}
+
+	private static byte[] create(int kind, int zoom, Random random) {
+		Builder b = new Builder(random);
+
+		// more detail at higher zoom levels
+		int detail = 1 << Math.max(0, zoom - 10);
+
+		switch (kind) {
+		case CITY:
+			b.addKey("name:en");
+			for (int i = 0; i < Math.min(STREETS.length, 2 + detail); i++)
+				b.addValue(STREETS[random.nextInt(STREETS.length)] + " " + i);
+
+			for (int i = 0; i < 20 + 4 * detail; i++)
+				b.line(b.tags(ROADS, 2, true), 2 + random.nextInt(8), 300);
+
+			if (zoom >= 14) {
+				for (int i = 0; i < 40 * detail; i++) {
+					int building = b.tag("building", "yes");
+					int number = b.tileValue("addr:housenumber",
+					        Integer.toString(1 + random.nextInt(200)));
+					b.polygon(new int[] { building, number }, 4 + random.nextInt(6), 0, 40);
+				}
+				for (int i = 0; i < 8 * detail; i++)
+					b.point(b.tags(AMENITIES, 2, true));
+			}
+			break;
+
+		case RURAL:
+			b.line(new int[] { b.tag("highway", "secondary"),
+			        b.tileValue("ref", "B " + random.nextInt(500)) }, 100, 150);
+			for (int i = 0; i < 6 + detail; i++)
+				b.line(b.tags(ROADS, 2, false), 20 + random.nextInt(100), 150);
+			for (int i = 0; i < 4 + detail; i++)
+				b.polygon(b.tags(LANDUSE, 2, false), 30 + random.nextInt(80),
+				        random.nextInt(3), 300);
+			b.point(new int[] { b.tileValue("name", "Dorf " + random.nextInt(1000)) });
+			break;
+
+		default:
+			b.polygon(new int[] { b.tag("natural", "water") }, 4, 0, EXTENT);
+			if (random.nextInt(3) == 0)
+				b.line(new int[] { b.tag("natural", "coastline") },
+				        50 + random.nextInt(200), 100);
+			break;
+		}
+		return b.build();
+	}
+
+	/**
+	 * Collects the tags, strings and elements of one tile.
+	 */
+	private static class Builder {
+		final Random random;
+		final List<String> keys = new ArrayList<String>();
+		final List<String> values = new ArrayList<String>();
+		// pairs of key and value index
+		final List<int[]> tags = new ArrayList<int[]>();
+		final ByteArrayOutputStream elements = new ByteArrayOutputStream();
+
+		Builder(Random random) {
+			this.random = random;
+		}
+
+		void addKey(String key) {
+			keys.add(key);
+		}
+
+		void addValue(String value) {
+			values.add(value);
+		}
+
+		/**
+		 * @return index of the tile tag with dictionary key and value
+		 */
+		int tag(String key, String value) {
+			return add(keyIndex(key), TagDictionary.DEFAULT.getValueIndex(value));
+		}
+
+		/**
+		 * @return index of the tile tag with dictionary key and tile value
+		 */
+		int tileValue(String key, String value) {
+			int v = values.indexOf(value);
+			if (v < 0) {
+				v = values.size();
+				values.add(value);
+			}
+			return add(keyIndex(key), TagDictionary.DEFAULT.getOffset() + v);
+		}
+
+		/**
+		 * @return a random tag of pairs, with a random tile value for the
+		 *         first tile key when named
+		 */
+		int[] tags(String[] pairs, int n, boolean named) {
+			int p = random.nextInt(pairs.length / n) * n;
+			int tag = tag(pairs[p], pairs[p + 1]);
+			if (!named || values.isEmpty())
+				return new int[] { tag };
+
+			int offset = TagDictionary.DEFAULT.getOffset();
+			int value = offset + random.nextInt(values.size());
+			int name = add(keyIndex("name"), value);
+			if (keys.isEmpty() || random.nextBoolean())
+				return new int[] { tag, name };
+
+			return new int[] { tag, name, add(offset, value) };
+		}
+
+		private static int keyIndex(String key) {
+			int k = TagDictionary.DEFAULT.getKeyIndex(key);
+			if (k < 0)
+				throw new IllegalStateException("no dictionary key " + key);
+			return k;
+		}
+
+		private int add(int key, int value) {
+			if (value < 0)
+				throw new IllegalStateException("no dictionary value for " + key);
+
+			for (int i = 0; i < tags.size(); i++) {
+				int[] t = tags.get(i);
+				if (t[0] == key && t[1] == value)
+					return i;
+			}
+			tags.add(new int[] { key, value });
+			return tags.size() - 1;
+		}
+
+		void line(int[] tagIds, int points, int step) {
+			int[] index = { points };
+			element(TAG_TILE_LINE, tagIds, index, walk(index, step));
+		}
+
+		void polygon(int[] tagIds, int points, int holes, int size) {
+			int[] index = new int[1 + holes];
+			index[0] = points;
+			for (int i = 1; i <= holes; i++)
+				index[i] = 4 + random.nextInt(points / 2);
+			element(TAG_TILE_POLY, tagIds, index, walk(index, size / 4));
+		}
+
+		void point(int[] tagIds) {
+			element(TAG_TILE_POINT, tagIds, null,
+			        new int[] { random.nextInt(EXTENT), random.nextInt(EXTENT) });
+		}
+
+		/**
+		 * @return delta encoded coordinates of rings of a random walk, each
+		 *         starting somewhere in the tile
+		 */
+		private int[] walk(int[] index, int step) {
+			int cnt = 0;
+			for (int n : index)
+				cnt += n;
+
+			int[] coords = new int[cnt * 2];
+			int pos = 0;
+			int px = 0;
+			int py = 0;
+			for (int n : index) {
+				int x = random.nextInt(EXTENT);
+				int y = random.nextInt(EXTENT);
+				for (int i = 0; i < n; i++) {
+					if (i > 0) {
+						x += random.nextInt(2 * step + 1) - step;
+						y += random.nextInt(2 * step + 1) - step;
+					}
+					coords[pos++] = x - px;
+					coords[pos++] = y - py;
+					px = x;
+					py = y;
+				}
+			}
+			return coords;
+		}
+
+		private void element(int type, int[] tagIds, int[] index, int[] coords) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			writeVarint(out, TAG_ELEM_NUM_TAGS << 3 | WIRE_VARINT);
+			writeVarint(out, tagIds.length);
+			writeField(out, TAG_ELEM_TAGS, packed(tagIds, false));
+
+			if (index != null) {
+				if (index.length > 1) {
+					writeVarint(out, TAG_ELEM_NUM_INDICES << 3 | WIRE_VARINT);
+					writeVarint(out, index.length);
+				}
+				writeField(out, TAG_ELEM_INDEX, packed(index, false));
+			}
+
+			writeField(out, TAG_ELEM_COORDS, packed(coords, true));
+
+			if (random.nextInt(4) == 0) {
+				writeVarint(out, TAG_ELEM_LAYER << 3 | WIRE_VARINT);
+				writeVarint(out, random.nextInt(11));
+			}
+			writeField(elements, type, out.toByteArray());
+		}
+
+		byte[] build() {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			writeVarint(out, TAG_TILE_VERSION << 3 | WIRE_VARINT);
+			writeVarint(out, 4);
+
+			writeVarint(out, TAG_TILE_NUM_TAGS << 3 | WIRE_VARINT);
+			writeVarint(out, tags.size());
+			writeVarint(out, TAG_TILE_NUM_KEYS << 3 | WIRE_VARINT);
+			writeVarint(out, keys.size());
+			writeVarint(out, TAG_TILE_NUM_VALUES << 3 | WIRE_VARINT);
+			writeVarint(out, values.size());
+
+			for (String k : keys)
+				writeField(out, TAG_TILE_TAG_KEYS, utf8(k));
+			for (String v : values)
+				writeField(out, TAG_TILE_TAG_VALUES, utf8(v));
+
+			int[] t = new int[tags.size() * 2];
+			for (int i = 0; i < tags.size(); i++) {
+				t[i * 2] = tags.get(i)[0];
+				t[i * 2 + 1] = tags.get(i)[1];
+			}
+			writeField(out, TAG_TILE_TAGS, packed(t, false));
+
+			byte[] e = elements.toByteArray();
+			out.write(e, 0, e.length);
+			return out.toByteArray();
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] packed(int[] values, boolean zigzag) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int v : values)
+			writeVarint(out, zigzag ? (v << 1) ^ (v >> 31) : v);
+		return out.toByteArray();
+	}
+
+	private static void writeField(ByteArrayOutputStream out, int tag, byte[] data) {
+		writeVarint(out, tag << 3 | WIRE_BYTES);
+		writeVarint(out, data.length);
+		out.write(data, 0, data.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int v) {
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+}
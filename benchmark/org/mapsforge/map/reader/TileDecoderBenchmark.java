@@ -0,0 +1,611 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.reader.header.FileOpenResult;
+
+/**
+ * Measures the decode hot path on a corpus of tiles.
+ *
+ * Without arguments the deterministic TileCorpus is used, the checksum printed
+ * with it identifies the corpus of a run. Recorded tiles are read from a
+ * directory in 'zoom/x/y.vtm' layout, e.g. filled by VtmMapDatabase with the
+ * 'cache' option, or a pack file written by VtmPackWriter. With '-record' the
+ * tiles of a bounding box are first downloaded from a tile server into the
+ * directory. Record tiles at several zoom levels covering dense city, rural
+ * and ocean areas.
+ *
+ * <pre>
+ * usage: TileDecoderBenchmark [options] [&lt;tile dir|pack file&gt; [zoom ...]]
+ *   -warmup &lt;ms&gt;        warmup time per benchmark (2000)
+ *   -time &lt;ms&gt;          time per iteration (1000)
+ *   -iterations &lt;n&gt;     number of timed iterations (5)
+ *   -record &lt;url&gt; &lt;minLat,minLon,maxLat,maxLon&gt;
+ *                      download missing tiles of the given zoom levels
+ *                      into the tile dir
+ * </pre>
+ *
+ * For each benchmark tiles/s, MB/s of tile data and bytes allocated per tile are
+ * reported. Allocation is only available on JVMs that implement
+ * com.sun.management.ThreadMXBean.
+ */
+public class TileDecoderBenchmark {
+
+	private final static String USAGE = "usage: TileDecoderBenchmark [-warmup ms] [-time ms]"
+	        + " [-iterations n] [-record url minLat,minLon,maxLat,maxLon]"
+	        + " [<tile dir|pack file> [zoom ...]]";
+
+	private static long warmupMs = 2000;
+	private static long iterationMs = 1000;
+	private static int iterations = 5;
+
+	/** number of distinct strings to cycle through for the cache miss case */
+	private final static int DISTINCT_STRINGS = 16 * UTF8Decoder.DEFAULT_CACHE_SIZE;
+
+	private final static int TAG_TILE_TAG_KEYS = 14;
+	private final static int TAG_TILE_TAG_VALUES = 15;
+	private final static int TAG_TILE_TAGS = 16;
+	private final static int TAG_TILE_LINE = 21;
+	private final static int TAG_TILE_POINT = 23;
+	private final static int TAG_ELEM_TAGS = 11;
+	private final static int TAG_ELEM_INDEX = 12;
+	private final static int TAG_ELEM_COORDS = 13;
+
+	/** a tile and the locations of its fields used by the micro benchmarks */
+	static class Sample {
+		final Tile tile;
+		final byte[] data;
+
+		// offsets of length prefixed packed uint32 arrays and their size
+		final List<int[]> arrays = new ArrayList<int[]>();
+		// offsets of length prefixed coordinate arrays and their size
+		final List<int[]> coords = new ArrayList<int[]>();
+		// offset and length of strings
+		final List<int[]> strings = new ArrayList<int[]>();
+
+		// copies of the strings made unique by a suffix, one set per variant
+		byte[] variantData;
+		int[][][] variants;
+		int nextVariant;
+
+		Sample(Tile tile, byte[] data) {
+			this.tile = tile;
+			this.data = data;
+		}
+	}
+
+	abstract static class Benchmark {
+		final String name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		/** @return some value depending on the result */
+		abstract long run(Sample s) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String url = null;
+		String bbox = null;
+		int arg = 0;
+
+		try {
+			for (; arg < args.length && args[arg].startsWith("-"); arg++) {
+				String opt = args[arg];
+				if (opt.equals("-warmup"))
+					warmupMs = Long.parseLong(args[++arg]);
+				else if (opt.equals("-time"))
+					iterationMs = Long.parseLong(args[++arg]);
+				else if (opt.equals("-iterations"))
+					iterations = Integer.parseInt(args[++arg]);
+				else if (opt.equals("-record")) {
+					url = args[++arg];
+					bbox = args[++arg];
+				} else
+					usage();
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			usage();
+		} catch (NumberFormatException e) {
+			usage();
+		}
+
+		if (iterationMs <= 0 || iterations <= 0 || (url != null && arg >= args.length))
+			usage();
+
+		List<Sample> samples;
+		if (arg < args.length) {
+			File file = new File(args[arg]);
+
+			Set<Integer> zooms = new HashSet<Integer>();
+			for (int i = arg + 1; i < args.length; i++)
+				zooms.add(Integer.valueOf(args[i]));
+
+			if (url != null)
+				record(url, bbox, file, zooms);
+
+			samples = load(file, zooms);
+		} else {
+			samples = TileCorpus.create();
+			System.out.println("TileCorpus checksum "
+			        + Long.toHexString(TileCorpus.checksum(samples)));
+		}
+
+		if (samples.isEmpty()) {
+			System.err.println("no tiles found");
+			System.exit(1);
+		}
+
+		long bytes = 0;
+		for (Sample s : samples) {
+			scan(s);
+			bytes += s.data.length;
+		}
+
+		int strings = makeVariants(samples);
+
+		System.out.println(samples.size() + " tiles, " + bytes + " bytes, "
+		        + strings + " distinct strings");
+
+		for (Benchmark b : benchmarks())
+			run(b, samples, bytes);
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(1);
+	}
+
+	/**
+	 * Download the tiles of the zoom levels within bbox into the disk cache
+	 * layout in dir. Tiles already in dir are not requested again.
+	 */
+	static void record(String url, String bbox, File dir, Set<Integer> zooms)
+	        throws IOException {
+		String[] c = bbox.split(",");
+		if (c.length != 4 || zooms.isEmpty())
+			throw new IllegalArgumentException("-record needs a bbox and zoom levels");
+
+		double minLat = Double.parseDouble(c[0]);
+		double minLon = Double.parseDouble(c[1]);
+		double maxLat = Double.parseDouble(c[2]);
+		double maxLon = Double.parseDouble(c[3]);
+
+		VtmMapDatabase db = new VtmMapDatabase();
+		HashMap<String, String> options = new HashMap<String, String>();
+		options.put("url", url);
+		options.put("cache", dir.getPath());
+		// keep everything
+		options.put("cache-size", String.valueOf(Integer.MAX_VALUE));
+
+		FileOpenResult result = db.open(options);
+		if (!result.isSuccess())
+			throw new IOException(result.getErrorMessage());
+
+		int count = 0;
+		int failed = 0;
+		try {
+			for (Integer z : zooms) {
+				byte zoom = z.byteValue();
+				long x1 = MercatorProjection.longitudeToTileX(minLon, zoom);
+				long x2 = MercatorProjection.longitudeToTileX(maxLon, zoom);
+				long y1 = MercatorProjection.latitudeToTileY(maxLat, zoom);
+				long y2 = MercatorProjection.latitudeToTileY(minLat, zoom);
+
+				for (long x = x1; x <= x2; x++)
+					for (long y = y1; y <= y2; y++) {
+						if (db.readMapData(new Tile(x, y, zoom)) == null)
+							failed++;
+						count++;
+					}
+			}
+		} finally {
+			db.close();
+		}
+		System.out.println("recorded " + count + " tiles, " + failed + " failed");
+	}
+
+	static List<Benchmark> benchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+
+		list.add(new Benchmark("decodeVarint32") {
+			final ProtobufDecoder d = new ProtobufDecoder();
+
+			@Override
+			long run(Sample s) throws IOException {
+				long sum = 0;
+				for (int[] a : s.arrays) {
+					d.setInput(s.data, a[0], s.data.length - a[0]);
+					d.decodeVarint32();
+					for (int i = 0; i < a[1]; i++)
+						sum += d.decodeVarint32();
+				}
+				return sum;
+			}
+		});
+
+		list.add(new Benchmark("decodeVarintArray") {
+			final ProtobufDecoder d = new ProtobufDecoder();
+			short[] array = new short[1024];
+
+			@Override
+			long run(Sample s) throws IOException {
+				long sum = 0;
+				for (int[] a : s.arrays) {
+					if (array.length < a[1])
+						array = new short[a[1]];
+					d.setInput(s.data, a[0], s.data.length - a[0]);
+					d.decodeVarintArray(a[1], array);
+					sum += array[0];
+				}
+				return sum;
+			}
+		});
+
+		// strings of the corpus as they are, mostly cache hits
+		list.add(new Benchmark("UTF8Decoder repeated") {
+			final UTF8Decoder d = new UTF8Decoder();
+
+			@Override
+			long run(Sample s) {
+				long sum = 0;
+				for (int[] a : s.strings)
+					sum += d.decode(s.data, a[0], a[1]).length();
+				return sum;
+			}
+		});
+
+		// every string is new to the cache
+		list.add(new Benchmark("UTF8Decoder distinct") {
+			final UTF8Decoder d = new UTF8Decoder();
+
+			@Override
+			long run(Sample s) {
+				long sum = 0;
+				for (int[] a : s.variants[s.nextVariant++ % s.variants.length])
+					sum += d.decode(s.variantData, a[0], a[1]).length();
+				return sum;
+			}
+		});
+
+		list.add(new Benchmark("UTF8Decoder uncached") {
+			final UTF8Decoder d = new UTF8Decoder(0);
+
+			@Override
+			long run(Sample s) {
+				long sum = 0;
+				for (int[] a : s.variants[s.nextVariant++ % s.variants.length])
+					sum += d.decode(s.variantData, a[0], a[1]).length();
+				return sum;
+			}
+		});
+
+		list.add(new Benchmark("decodeInterleavedPoints") {
+			final TileDecoder d = new TileDecoder();
+			final GeometryBuffer g = new GeometryBuffer(1024, 16);
+
+			@Override
+			long run(Sample s) throws IOException {
+				long sum = 0;
+				for (int[] a : s.coords) {
+					d.setInput(s.data, a[0], s.data.length - a[0]);
+					sum += d.decodeInterleavedPoints(g, a[1]);
+				}
+				return sum;
+			}
+		});
+
+		list.add(new Benchmark("decodeInterleavedPoints fixed") {
+			final TileDecoder d = new TileDecoder();
+			final GeometryBuffer g = new GeometryBuffer(1024, 16);
+			{
+				g.fixed = true;
+			}
+
+			@Override
+			long run(Sample s) throws IOException {
+				long sum = 0;
+				for (int[] a : s.coords) {
+					d.setInput(s.data, a[0], s.data.length - a[0]);
+					sum += d.decodeInterleavedPoints(g, a[1]);
+				}
+				return sum;
+			}
+		});
+
+		list.add(new Benchmark("decode TileDataSink") {
+			final TileDecoder d = new TileDecoder();
+			final TileDataSink sink = new TileDataSink() {
+				@Override
+				public void process(MapElement element) {
+				}
+
+				@Override
+				public void completed(boolean success) {
+				}
+			};
+
+			@Override
+			long run(Sample s) throws IOException {
+				d.setInput(s.data, 0, s.data.length);
+				return d.decode(s.tile, sink) ? 1 : 0;
+			}
+		});
+
+		list.add(new Benchmark("decode MapReadResult") {
+			final TileDecoder d = new TileDecoder();
+			final MapReadResultSink sink = new MapReadResultSink();
+
+			@Override
+			long run(Sample s) throws IOException {
+				sink.reset();
+				d.setInput(s.data, 0, s.data.length);
+				d.decode(s.tile, sink);
+				return sink.getResult() != null ? 1 : 0;
+			}
+		});
+
+		return list;
+	}
+
+	static void run(Benchmark b, List<Sample> samples, long bytes) throws IOException {
+		long blackhole = 0;
+
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() - start < warmupMs)
+			for (Sample s : samples)
+				blackhole += b.run(s);
+
+		double best = 0;
+		double sum = 0;
+		long allocated = 0;
+		long tiles = 0;
+
+		for (int i = 0; i < iterations; i++) {
+			long alloc = allocatedBytes();
+			long n = 0;
+			long t0 = System.nanoTime();
+			long t1;
+			do {
+				for (Sample s : samples)
+					blackhole += b.run(s);
+				n++;
+				t1 = System.nanoTime();
+			} while (t1 - t0 < iterationMs * 1000000);
+
+			if (alloc >= 0)
+				allocated += allocatedBytes() - alloc;
+			tiles += n * samples.size();
+
+			double tilesPerSec = n * samples.size() / ((t1 - t0) / 1e9);
+			sum += tilesPerSec;
+			if (tilesPerSec > best)
+				best = tilesPerSec;
+		}
+
+		double avg = sum / iterations;
+		double mbPerSec = avg * bytes / samples.size() / (1 << 20);
+
+		System.out.println(String.format("%-30s %10.0f tiles/s (best %.0f) %8.1f MB/s %10s B/tile [%d]",
+		        b.name, avg, best, mbPerSec,
+		        allocated > 0 ? String.valueOf(allocated / tiles) : "n/a",
+		        blackhole & 1));
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean)
+			        .getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	static List<Sample> load(File file, Set<Integer> zooms) throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+
+		if (file.isDirectory()) {
+			File[] zs = file.listFiles();
+			for (File z : zs) {
+				int zoom;
+				try {
+					zoom = Integer.parseInt(z.getName());
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				if (!zooms.isEmpty() && !zooms.contains(Integer.valueOf(zoom)))
+					continue;
+
+				File[] xs = z.listFiles();
+				if (xs == null)
+					continue;
+				for (File x : xs) {
+					File[] ys = x.listFiles();
+					if (ys == null)
+						continue;
+					for (File y : ys) {
+						String name = y.getName();
+						if (!name.endsWith(".vtm"))
+							continue;
+						Tile tile = new Tile(Long.parseLong(x.getName()),
+						        Long.parseLong(name.substring(0, name.length() - 4)),
+						        (byte) zoom);
+						samples.add(new Sample(tile, readFile(y)));
+					}
+				}
+			}
+			return samples;
+		}
+
+		VtmPackMapDatabase pack = new VtmPackMapDatabase();
+		HashMap<String, String> options = new HashMap<String, String>();
+		options.put("file", file.getPath());
+		if (!pack.open(options).isSuccess())
+			throw new IOException("cannot open " + file);
+
+		for (Tile tile : pack.getTiles()) {
+			if (!zooms.isEmpty() && !zooms.contains(Integer.valueOf(tile.zoomLevel)))
+				continue;
+
+			ByteBuffer buf = pack.getTile(tile);
+			byte[] data = new byte[buf.remaining()];
+			buf.get(data);
+			samples.add(new Sample(tile, data));
+		}
+		pack.close();
+
+		return samples;
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		byte[] data = new byte[(int) f.length()];
+		FileInputStream is = new FileInputStream(f);
+		try {
+			int pos = 0;
+			int len;
+			while (pos < data.length && (len = is.read(data, pos, data.length - pos)) >= 0)
+				pos += len;
+		} finally {
+			is.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Create copies of the tile strings with a unique suffix so that the
+	 * corpus has at least DISTINCT_STRINGS different ones. Each run decodes one
+	 * set of copies, i.e. as many strings as the tile has.
+	 *
+	 * @return the number of distinct strings
+	 */
+	static int makeVariants(List<Sample> samples) {
+		int count = 0;
+		for (Sample s : samples)
+			count += s.strings.size();
+
+		int num = count == 0 ? 1 : (DISTINCT_STRINGS + count - 1) / count;
+		int id = 0;
+
+		for (Sample s : samples) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			s.variants = new int[num][s.strings.size()][];
+
+			for (int v = 0; v < num; v++) {
+				for (int i = 0; i < s.strings.size(); i++) {
+					int[] a = s.strings.get(i);
+					byte[] suffix = ("#" + id++).getBytes();
+					int offset = out.size();
+					out.write(s.data, a[0], a[1]);
+					out.write(suffix, 0, suffix.length);
+					s.variants[v][i] = new int[] { offset, a[1] + suffix.length };
+				}
+			}
+			s.variantData = out.toByteArray();
+		}
+		return id;
+	}
+
+	/**
+	 * Find packed arrays, coordinates and strings in tile.
+	 */
+	static void scan(Sample s) {
+		byte[] data = s.data;
+		int[] pos = new int[1];
+
+		while (pos[0] < data.length) {
+			int key = readVarint(data, pos);
+			int tag = key >>> 3;
+			int wire = key & 7;
+
+			if (wire == 0) {
+				readVarint(data, pos);
+				continue;
+			}
+
+			int start = pos[0];
+			int len = readVarint(data, pos);
+			int end = pos[0] + len;
+
+			if (tag == TAG_TILE_TAGS) {
+				s.arrays.add(new int[] { start, countVarints(data, pos[0], end) });
+			} else if (tag == TAG_TILE_TAG_KEYS || tag == TAG_TILE_TAG_VALUES) {
+				s.strings.add(new int[] { pos[0], len });
+			} else if (tag >= TAG_TILE_LINE && tag <= TAG_TILE_POINT) {
+				scanElement(s, pos[0], end, tag != TAG_TILE_POINT);
+			}
+			pos[0] = end;
+		}
+	}
+
+	private static void scanElement(Sample s, int offset, int end, boolean lines) {
+		byte[] data = s.data;
+		int[] pos = { offset };
+
+		while (pos[0] < end) {
+			int key = readVarint(data, pos);
+			int tag = key >>> 3;
+
+			if ((key & 7) == 0) {
+				readVarint(data, pos);
+				continue;
+			}
+
+			int start = pos[0];
+			int len = readVarint(data, pos);
+			int fieldEnd = pos[0] + len;
+
+			if (tag == TAG_ELEM_TAGS || tag == TAG_ELEM_INDEX)
+				s.arrays.add(new int[] { start, countVarints(data, pos[0], fieldEnd) });
+			else if (tag == TAG_ELEM_COORDS && lines)
+				s.coords.add(new int[] { start, countVarints(data, pos[0], fieldEnd) / 2 });
+
+			pos[0] = fieldEnd;
+		}
+	}
+
+	private static int readVarint(byte[] data, int[] pos) {
+		int val = 0;
+		for (int shift = 0; pos[0] < data.length; shift += 7) {
+			byte b = data[pos[0]++];
+			val |= (b & 0x7f) << shift;
+			if (b >= 0)
+				break;
+		}
+		return val;
+	}
+
+	private static int countVarints(byte[] data, int pos, int end) {
+		int cnt = 0;
+		for (; pos < end; pos++)
+			if (data[pos] >= 0)
+				cnt++;
+		return cnt;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.GeometryBuffer.GeometryType;
+
+/**
+ * Decoded tile kept in parallel primitive arrays instead of one object per
+ * element, tag and point. Coordinates are in tile units, see
+ * GeometryBuffer.FIXED_SCALE. Elements are read with a Cursor, or passed to
+ * a TileDataSink with replay(). Created by TileDecoder.decodeCompact(),
+ * immutable.
+ */
+public class CompactTile {
+
+	private final static GeometryType[] TYPES = GeometryType.values();
+
+	public final Tile tile;
+
+	// distinct tags of all elements
+	final Tag[] tags;
+
+	// per element
+	final byte[] types;
+	final byte[] layers;
+	// ranges in tagIds, index and points, numElements + 1 entries
+	final int[] tagOffsets;
+	final int[] indexOffsets;
+	final int[] pointOffsets;
+
+	// indices in 'tags'
+	final short[] tagIds;
+	// points per line or ring, see GeometryBuffer.index
+	final int[] index;
+	// interleaved x,y
+	final short[] points;
+
+	CompactTile(Tile tile, Tag[] tags, byte[] types, byte[] layers,
+	        int[] tagOffsets, int[] indexOffsets, int[] pointOffsets,
+	        short[] tagIds, int[] index, short[] points) {
+		this.tile = tile;
+		this.tags = tags;
+		this.types = types;
+		this.layers = layers;
+		this.tagOffsets = tagOffsets;
+		this.indexOffsets = indexOffsets;
+		this.pointOffsets = pointOffsets;
+		this.tagIds = tagIds;
+		this.index = index;
+		this.points = points;
+	}
+
+	public int getNumElements() {
+		return types.length;
+	}
+
+	/**
+	 * @return a new cursor before the first element
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Pass all elements to sink, in decode order.
+	 */
+	public void replay(TileDataSink sink) {
+		MapElement elem = new MapElement(1, 1);
+		elem.fixed = true;
+
+		for (int e = 0, n = types.length; e < n; e++) {
+			elem.clear();
+			elem.type = TYPES[types[e]];
+			elem.layer = layers[e];
+
+			TagSet elemTags = elem.tags;
+			if (elemTags.tags.length < tagOffsets[e + 1] - tagOffsets[e])
+				elemTags.tags = new Tag[tagOffsets[e + 1] - tagOffsets[e]];
+			for (int i = tagOffsets[e]; i < tagOffsets[e + 1]; i++)
+				elemTags.tags[elemTags.numTags++] = tags[tagIds[i]];
+
+			int numIndices = indexOffsets[e + 1] - indexOffsets[e];
+			int[] elemIndex = elem.ensureIndexSize(numIndices, false);
+			System.arraycopy(index, indexOffsets[e], elemIndex, 0, numIndices);
+			elem.indexPos = numIndices;
+			elemIndex[numIndices] = -1;
+
+			int start = pointOffsets[e] << 1;
+			int size = (pointOffsets[e + 1] << 1) - start;
+			short[] elemPoints = elem.ensureFixedPointSize(size >> 1, false);
+			System.arraycopy(points, start, elemPoints, 0, size);
+			elem.pointPos = size;
+
+			sink.process(elem);
+		}
+		sink.completed(true);
+	}
+
+	/**
+	 * @return the elements as a new MapReadResult
+	 */
+	public MapReadResult toMapReadResult() {
+		MapReadResultSink sink = new MapReadResultSink();
+		replay(sink);
+		return sink.getResult();
+	}
+
+	/**
+	 * @return estimated heap size in bytes, tags are not counted as they are
+	 *         mostly shared
+	 */
+	public long getSize() {
+		return 16 * 11 + tags.length * 8
+		        + types.length * 2 + (types.length + 1) * 12
+		        + tagIds.length * 2 + index.length * 4 + points.length * 2;
+	}
+
+	/**
+	 * Flyweight view on one element at a time.
+	 */
+	public final class Cursor {
+		private int mElement = -1;
+
+		/**
+		 * @return false after the last element
+		 */
+		public boolean next() {
+			if (mElement < types.length)
+				mElement++;
+			return mElement < types.length;
+		}
+
+		/**
+		 * @param element
+		 *            0 .. getNumElements() - 1
+		 */
+		public void moveTo(int element) {
+			if (element < 0 || element >= types.length)
+				throw new IndexOutOfBoundsException("element " + element);
+			mElement = element;
+		}
+
+		public GeometryType getType() {
+			return TYPES[types[mElement]];
+		}
+
+		public int getLayer() {
+			return layers[mElement];
+		}
+
+		public int getNumTags() {
+			return tagOffsets[mElement + 1] - tagOffsets[mElement];
+		}
+
+		public Tag getTag(int i) {
+			return tags[tagIds[tagOffsets[mElement] + i]];
+		}
+
+		/**
+		 * @return number of entries in the geometry index, 0 for points
+		 */
+		public int getNumIndices() {
+			return indexOffsets[mElement + 1] - indexOffsets[mElement];
+		}
+
+		/**
+		 * @return points of line or ring i, 0 separates polygons
+		 */
+		public int getIndex(int i) {
+			return index[indexOffsets[mElement] + i];
+		}
+
+		public int getNumPoints() {
+			return pointOffsets[mElement + 1] - pointOffsets[mElement];
+		}
+
+		/**
+		 * @return x of point in tile units
+		 */
+		public int getX(int point) {
+			return points[(pointOffsets[mElement] + point) << 1];
+		}
+
+		/**
+		 * @return y of point in tile units
+		 */
+		public int getY(int point) {
+			return points[((pointOffsets[mElement] + point) << 1) + 1];
+		}
+	}
+}
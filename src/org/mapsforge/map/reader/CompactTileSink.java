@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Collects decoded elements into a CompactTile. Elements must be in
+ * fixed-point mode.
+ */
+class CompactTileSink implements TileDataSink {
+
+	private Tile mTile;
+	private boolean mSuccess;
+
+	// tag -> index in mTags, element tags are shared instances of the tile
+	private final IdentityHashMap<Tag, Integer> mTagIndex = new IdentityHashMap<Tag, Integer>();
+	private Tag[] mTags = new Tag[64];
+
+	private int mNumElements;
+	private byte[] mTypes = new byte[64];
+	private byte[] mLayers = new byte[64];
+	private int[] mTagOffsets = new int[65];
+	private int[] mIndexOffsets = new int[65];
+	private int[] mPointOffsets = new int[65];
+
+	private short[] mTagIds = new short[256];
+	private int mNumTagIds;
+	private int[] mIndex = new int[256];
+	private int mNumIndex;
+	private short[] mPoints = new short[4096];
+	private int mNumPoints;
+
+	/** start collecting a new tile */
+	void reset(Tile tile) {
+		mTile = tile;
+		mSuccess = false;
+		mTagIndex.clear();
+		Arrays.fill(mTags, null);
+		mNumElements = 0;
+		mNumTagIds = 0;
+		mNumIndex = 0;
+		mNumPoints = 0;
+	}
+
+	/**
+	 * @return the collected tile or null when decoding failed
+	 */
+	CompactTile getResult() {
+		if (!mSuccess)
+			return null;
+
+		int n = mNumElements;
+		return new CompactTile(mTile,
+		                       Arrays.copyOf(mTags, mTagIndex.size()),
+		                       Arrays.copyOf(mTypes, n),
+		                       Arrays.copyOf(mLayers, n),
+		                       Arrays.copyOf(mTagOffsets, n + 1),
+		                       Arrays.copyOf(mIndexOffsets, n + 1),
+		                       Arrays.copyOf(mPointOffsets, n + 1),
+		                       Arrays.copyOf(mTagIds, mNumTagIds),
+		                       Arrays.copyOf(mIndex, mNumIndex),
+		                       Arrays.copyOf(mPoints, mNumPoints));
+	}
+
+	@Override
+	public void process(MapElement element) {
+		int e = mNumElements;
+		if (e + 1 == mTypes.length) {
+			int size = mTypes.length * 2;
+			mTypes = Arrays.copyOf(mTypes, size);
+			mLayers = Arrays.copyOf(mLayers, size);
+			mTagOffsets = Arrays.copyOf(mTagOffsets, size + 1);
+			mIndexOffsets = Arrays.copyOf(mIndexOffsets, size + 1);
+			mPointOffsets = Arrays.copyOf(mPointOffsets, size + 1);
+		}
+
+		mTypes[e] = (byte) element.type.ordinal();
+		mLayers[e] = (byte) element.layer;
+
+		TagSet tags = element.tags;
+		if (mNumTagIds + tags.numTags > mTagIds.length)
+			mTagIds = Arrays.copyOf(mTagIds, Math.max(mTagIds.length * 2, mNumTagIds
+			        + tags.numTags));
+		for (int i = 0; i < tags.numTags; i++)
+			mTagIds[mNumTagIds++] = tagId(tags.tags[i]);
+
+		int numIndices = element.indexPos;
+		if (mNumIndex + numIndices > mIndex.length)
+			mIndex = Arrays.copyOf(mIndex, Math.max(mIndex.length * 2, mNumIndex + numIndices));
+		System.arraycopy(element.index, 0, mIndex, mNumIndex, numIndices);
+		mNumIndex += numIndices;
+
+		int size = element.pointPos;
+		if (mNumPoints + size > mPoints.length)
+			mPoints = Arrays.copyOf(mPoints, Math.max(mPoints.length * 2, mNumPoints + size));
+		System.arraycopy(element.fixedPoints, 0, mPoints, mNumPoints, size);
+		mNumPoints += size;
+
+		mNumElements = ++e;
+		mTagOffsets[e] = mNumTagIds;
+		mIndexOffsets[e] = mNumIndex;
+		mPointOffsets[e] = mNumPoints >> 1;
+	}
+
+	@Override
+	public void completed(boolean success) {
+		mSuccess = success;
+	}
+
+	private short tagId(Tag tag) {
+		Integer id = mTagIndex.get(tag);
+		if (id != null)
+			return id.shortValue();
+
+		int n = mTagIndex.size();
+		if (n == mTags.length)
+			mTags = Arrays.copyOf(mTags, n * 2);
+
+		mTags[n] = tag;
+		mTagIndex.put(tag, Integer.valueOf(n));
+		return (short) n;
+	}
+}
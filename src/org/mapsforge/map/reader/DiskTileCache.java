@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Stores the raw protobuf content of .vtm tiles in 'dir/zoom/x/y.vtm',
+ * other files in 'dir' are ignored.
+ * Entries are evicted in LRU order when the total size exceeds the size
+ * bound. Entries older than maxAge are not returned.
+ *
+ * The access order is only kept in memory. On startup entries are ordered
+ * by the time they were stored, the file modification time, which get()
+ * does not update as it is also the age of the entry.
+ */
+public class DiskTileCache {
+	private static final Logger LOG = Logger.getLogger(DiskTileCache.class.getName());
+
+	private final static String TILE_EXT = ".vtm";
+	private final static String TMP_EXT = ".tmp";
+
+	private final File mDir;
+	private final long mMaxSize;
+	private final long mMaxAge;
+
+	private long mSize;
+
+	private static class Entry {
+		final File file;
+		final long size;
+		final long time;
+
+		Entry(File file, long size, long time) {
+			this.file = file;
+			this.size = size;
+			this.time = time;
+		}
+	}
+
+	// access ordered: first entry is the least recently used
+	private final LinkedHashMap<String, Entry> mEntries =
+			new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+	/**
+	 * @param dir
+	 *            cache directory, created when missing
+	 * @param maxSize
+	 *            max bytes of all cached tiles
+	 * @param maxAge
+	 *            max age of a cached tile in milliseconds, 0 for no limit
+	 */
+	public DiskTileCache(File dir, long maxSize, long maxAge) {
+		mDir = dir;
+		mMaxSize = maxSize;
+		mMaxAge = maxAge;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			LOG.info("could not create cache dir " + dir);
+
+		scan();
+	}
+
+	private void scan() {
+		List<File> files = new ArrayList<File>();
+		collectFiles(mDir, 0, files);
+
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long ta = a.lastModified();
+				long tb = b.lastModified();
+				return ta < tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+
+		String root = mDir.getPath();
+		for (File f : files) {
+			String path = f.getPath();
+			// 'zoom/x/y' relative to cache dir
+			String key = path.substring(root.length() + 1,
+					path.length() - TILE_EXT.length()).replace(File.separatorChar, '/');
+
+			Entry e = new Entry(f, f.length(), f.lastModified());
+			mEntries.put(key, e);
+			mSize += e.size;
+		}
+		trim();
+	}
+
+	/**
+	 * Collect 'zoom/x/y.vtm' files below dir, other files and directories
+	 * are not part of the cache.
+	 */
+	private static void collectFiles(File dir, int depth, List<File> files) {
+		File[] list = dir.listFiles();
+		if (list == null)
+			return;
+
+		for (File f : list) {
+			String name = f.getName();
+			if (depth < 2) {
+				if (isNumber(name) && f.isDirectory())
+					collectFiles(f, depth + 1, files);
+			} else if (name.endsWith(TILE_EXT)) {
+				if (isNumber(name.substring(0, name.length() - TILE_EXT.length())) && f.isFile())
+					files.add(f);
+			} else if (name.endsWith(TMP_EXT)) {
+				f.delete();
+			}
+		}
+	}
+
+	private static boolean isNumber(String s) {
+		if (s.length() == 0)
+			return false;
+
+		for (int i = 0; i < s.length(); i++)
+			if (s.charAt(i) < '0' || s.charAt(i) > '9')
+				return false;
+
+		return true;
+	}
+
+	private static String key(Tile tile) {
+		return tile.zoomLevel + "/" + tile.tileX + "/" + tile.tileY;
+	}
+
+	/**
+	 * @return true when the tile is cached, it may be expired. Does not
+	 *         change the access order
+	 */
+	public synchronized boolean contains(Tile tile) {
+		return mEntries.containsKey(key(tile));
+	}
+
+	/**
+	 * @return the cached tile content or null when the tile is not cached or
+	 *         expired
+	 */
+	public byte[] get(Tile tile) {
+		String key = key(tile);
+		Entry e;
+		synchronized (this) {
+			e = mEntries.get(key);
+			if (e == null)
+				return null;
+
+			if (mMaxAge > 0 && System.currentTimeMillis() - e.time > mMaxAge) {
+				remove(key);
+				return null;
+			}
+		}
+
+		FileInputStream is = null;
+		try {
+			is = new FileInputStream(e.file);
+
+			// the file may have been replaced by put() since the lookup
+			if (is.getChannel().size() != e.size) {
+				synchronized (this) {
+					remove(key, e);
+				}
+				return null;
+			}
+
+			byte[] data = new byte[(int) e.size];
+			int pos = 0;
+			int len;
+			while (pos < data.length && (len = is.read(data, pos, data.length - pos)) >= 0)
+				pos += len;
+
+			if (pos != data.length) {
+				LOG.info(tile + " truncated cache entry");
+				synchronized (this) {
+					remove(key, e);
+				}
+				return null;
+			}
+			return data;
+		} catch (IOException ex) {
+			LOG.info(tile + " cache read failed: " + ex.getMessage());
+			synchronized (this) {
+				remove(key, e);
+			}
+			return null;
+		} finally {
+			close(is);
+		}
+	}
+
+	/**
+	 * Store tile content, replaces an existing entry.
+	 */
+	public void put(Tile tile, byte[] data, int length) {
+		String key = key(tile);
+		File file = new File(mDir, key.replace('/', File.separatorChar) + TILE_EXT);
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			LOG.info(tile + " could not create " + parent);
+			return;
+		}
+
+		File tmp = null;
+		FileOutputStream os = null;
+		boolean ok = false;
+		try {
+			// unique name, another connection might write the same tile.
+			// The prefix must have at least three characters
+			tmp = File.createTempFile(tile.tileY + TILE_EXT + ".", TMP_EXT, parent);
+			os = new FileOutputStream(tmp);
+			os.write(data, 0, length);
+			ok = true;
+		} catch (IOException ex) {
+			LOG.info(tile + " cache write failed: " + ex.getMessage());
+		} finally {
+			close(os);
+		}
+
+		if (!ok) {
+			if (tmp != null)
+				tmp.delete();
+			return;
+		}
+
+		synchronized (this) {
+			remove(key);
+			if (!tmp.renameTo(file)) {
+				LOG.info(tile + " could not rename " + tmp);
+				tmp.delete();
+				return;
+			}
+			mEntries.put(key, new Entry(file, length, System.currentTimeMillis()));
+			mSize += length;
+			trim();
+		}
+	}
+
+	public synchronized long size() {
+		return mSize;
+	}
+
+	private void remove(String key) {
+		Entry e = mEntries.remove(key);
+		if (e == null)
+			return;
+
+		mSize -= e.size;
+		e.file.delete();
+	}
+
+	/**
+	 * Remove the entry of key only when it is still e.
+	 */
+	private void remove(String key, Entry e) {
+		if (mEntries.get(key) == e)
+			remove(key);
+	}
+
+	private void trim() {
+		Iterator<Entry> it = mEntries.values().iterator();
+		while (mSize > mMaxSize && it.hasNext()) {
+			Entry e = it.next();
+			it.remove();
+			mSize -= e.size;
+			e.file.delete();
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
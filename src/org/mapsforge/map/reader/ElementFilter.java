@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import org.mapsforge.map.reader.GeometryBuffer.GeometryType;
+
+/**
+ * Decides from the tag ids of an element whether TileDecoder decodes its
+ * geometry. Rejected elements are skipped without decoding coordinates
+ * or creating tags.
+ */
+public interface ElementFilter {
+	/**
+	 * @param type
+	 *            POINT, LINE or POLY
+	 * @param tagIds
+	 *            indices of the element's tags in tileTags, only valid until
+	 *            accept() returns
+	 * @param numTags
+	 *            number of tag ids
+	 * @param tileTags
+	 *            tags of the current tile
+	 * @return true to decode the element
+	 */
+	boolean accept(GeometryType type, short[] tagIds, int numTags, TagSet tileTags);
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+/**
+ * Reusable buffer for the geometry of one tile element.
+ *
+ * Coordinates are stored as interleaved x,y pairs in 'points', relative to
+ * the tile (0..1). 'index' holds the number of points of each line or ring,
+ * polygons are separated by a 0 entry and the list ends with -1 when
+ * indexPos < index.length. Polygon rings are not closed, i.e. the first
+ * point is not repeated.
+ *
+ * In fixed-point mode the coordinates are kept in tile units
+ * (0..FIXED_SCALE) in 'fixedPoints' instead, 4 bytes per point. getX()
+ * and getY() return tile relative values in both modes.
+ */
+public class GeometryBuffer {
+	public enum GeometryType {
+		NONE,
+		POINT,
+		LINE,
+		POLY
+	}
+
+	/** tile units per tile of fixed-point coordinates */
+	public final static int FIXED_SCALE = 4096;
+	private final static float INV_FIXED_SCALE = 1f / FIXED_SCALE;
+
+	public float[] points;
+	public short[] fixedPoints;
+	public int[] index;
+
+	/** coordinates are in fixedPoints */
+	public boolean fixed;
+
+	/** number of floats used in points, or shorts used in fixedPoints */
+	public int pointPos;
+	/** number of entries used in index */
+	public int indexPos;
+
+	public GeometryType type = GeometryType.NONE;
+
+	public GeometryBuffer(int numPoints, int numIndices) {
+		points = new float[numPoints * 2];
+		index = new int[numIndices + 1];
+	}
+
+	public GeometryBuffer clear() {
+		pointPos = 0;
+		indexPos = 0;
+		index[0] = -1;
+		type = GeometryType.NONE;
+		return this;
+	}
+
+	public int getNumPoints() {
+		return pointPos >> 1;
+	}
+
+	public float getX(int point) {
+		if (fixed)
+			return fixedPoints[point << 1] * INV_FIXED_SCALE;
+
+		return points[point << 1];
+	}
+
+	public float getY(int point) {
+		if (fixed)
+			return fixedPoints[(point << 1) + 1] * INV_FIXED_SCALE;
+
+		return points[(point << 1) + 1];
+	}
+
+	public void addPoint(float x, float y) {
+		if (pointPos + 2 > points.length)
+			ensurePointSize((pointPos >> 1) + 1, true);
+
+		points[pointPos++] = x;
+		points[pointPos++] = y;
+	}
+
+	/**
+	 * Add point in tile units, fixed-point mode only.
+	 */
+	public void addFixedPoint(short x, short y) {
+		if (pointPos + 2 > fixedPoints.length)
+			ensureFixedPointSize((pointPos >> 1) + 1, true);
+
+		fixedPoints[pointPos++] = x;
+		fixedPoints[pointPos++] = y;
+	}
+
+	/**
+	 * @param numPoints
+	 *            number of x,y pairs the buffer must hold
+	 * @param copy
+	 *            keep current points when the array grows
+	 */
+	public short[] ensureFixedPointSize(int numPoints, boolean copy) {
+		int size = numPoints * 2;
+		if (fixedPoints == null) {
+			fixedPoints = new short[Math.max(size, points.length)];
+			return fixedPoints;
+		}
+		if (size <= fixedPoints.length)
+			return fixedPoints;
+
+		int newSize = Math.max(size, fixedPoints.length + (fixedPoints.length >> 1));
+		short[] tmp = new short[newSize];
+		if (copy)
+			System.arraycopy(fixedPoints, 0, tmp, 0, fixedPoints.length);
+
+		fixedPoints = tmp;
+		return fixedPoints;
+	}
+
+	/**
+	 * @param numPoints
+	 *            number of x,y pairs the buffer must hold
+	 * @param copy
+	 *            keep current points when the array grows
+	 */
+	public float[] ensurePointSize(int numPoints, boolean copy) {
+		int size = numPoints * 2;
+		if (size <= points.length)
+			return points;
+
+		// grow by at least half the current size
+		int newSize = Math.max(size, points.length + (points.length >> 1));
+		float[] tmp = new float[newSize];
+		if (copy)
+			System.arraycopy(points, 0, tmp, 0, points.length);
+
+		points = tmp;
+		return points;
+	}
+
+	/**
+	 * @param numIndices
+	 *            number of index entries, the array holds one more for the
+	 *            end marker
+	 * @param copy
+	 *            keep current entries when the array grows
+	 */
+	public int[] ensureIndexSize(int numIndices, boolean copy) {
+		if (numIndices < index.length)
+			return index;
+
+		int[] tmp = new int[numIndices + 1];
+		if (copy)
+			System.arraycopy(index, 0, tmp, 0, index.length);
+
+		index = tmp;
+		return index;
+	}
+}
@@ -23,9 +23,13 @@ import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.URL;
+import java.util.Locale;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.MetricsSink.Reconnect;
 
 public class LwHttp {
 	private static final Logger LOG = Logger.getLogger(LwHttp.class.getName());
@@ -37,22 +41,53 @@ public class LwHttp {
 	private int mPort;
 
 	private int mMaxReq = 0;
+	// from the Keep-Alive header
+	private int mKeepAliveTimeout = RESPONSE_EXPECTED_TIMEOUT;
+	// server sent 'Connection: close'
+	private boolean mCloseAfterResponse;
 	private Socket mSocket;
 	private OutputStream mCommandStream;
 	private InputStream mResponseStream;
 	long mLastRequest = 0;
 	private SocketAddress mSockAddr;
 
-	private final static byte[] RESPONSE_HTTP_OK = "HTTP/1.1 200 OK".getBytes();
+	private final static byte[] RESPONSE_HTTP = "HTTP/1.".getBytes();
+	final static int STATUS_OK = 200;
 	private final static int RESPONSE_EXPECTED_LIVES = 100;
 	private final static int RESPONSE_EXPECTED_TIMEOUT = 10000;
+	// larger tile lengths at the start of the content are invalid
+	private final static int MAX_CONTENT_LENGTH = 1 << 24;
 	private final static String TILE_EXT = ".vtm";
 
 	private byte[] REQUEST_GET_START;
 	private byte[] REQUEST_GET_END;
 
+	// max request line length: GET path + 3 ints + 2 separators
+	private int mMaxRequestLength;
 	private byte[] mRequestBuffer;
 	public int contentLength;
+	// status code of the last response, -1 when none could be read
+	int status;
+	// content of the current response
+	private InputStream mBodyStream;
+	// chunked or length limited body of the current response, before
+	// decompression
+	private InputStream mFramedStream;
+
+	// max number of requests written before reading responses, 1 == serial
+	private int mPipelineDepth = 1;
+	// requests written and not yet read by readHeader()
+	private int mPending;
+
+	private MetricsSink mMetrics;
+
+	// nanoseconds spent connecting for the last request, 0 when the
+	// keep-alive connection was used
+	long connectTime;
+	// System.nanoTime() when the last request was sent
+	long requestTime;
+	// System.nanoTime() when the last response header was read
+	long headerTime;
 
 	boolean setServer(String urlString) {
 		URL url;
@@ -74,17 +109,35 @@ public class LwHttp {
 		REQUEST_GET_START = ("GET " + path).getBytes();
 		REQUEST_GET_END = (TILE_EXT + " HTTP/1.1\n" +
 				"Host: " + host + "\n" +
+				"Accept-Encoding: gzip, deflate\n" +
 				"Connection: Keep-Alive\n\n").getBytes();
 
 		mHost = host;
 		mPort = port;
 
-		mRequestBuffer = new byte[1024];
-		System.arraycopy(REQUEST_GET_START, 0,
-				mRequestBuffer, 0, REQUEST_GET_START.length);
+		mMaxRequestLength = REQUEST_GET_START.length + 3 * 11 + 2
+				+ REQUEST_GET_END.length;
+		mRequestBuffer = new byte[mMaxRequestLength];
 		return true;
 	}
 
+	/**
+	 * @param depth max number of requests to send on the keep-alive
+	 *            connection before reading the responses, 1 to disable
+	 *            pipelining
+	 */
+	void setPipelineDepth(int depth) {
+		mPipelineDepth = depth < 1 ? 1 : depth;
+	}
+
+	int getPipelineDepth() {
+		return mPipelineDepth;
+	}
+
+	void setMetrics(MetricsSink metrics) {
+		mMetrics = metrics;
+	}
+
 
 	public void close() {
 		if (mSocket != null) {
@@ -94,72 +147,316 @@ public class LwHttp {
 				e.printStackTrace();
 			} finally {
 				mSocket = null;
+				mPending = 0;
 			}
 		}
 	}
 
+	/**
+	 * Read the response header and the tile length at the start of the
+	 * content. Handles 'Content-Length', 'Transfer-Encoding: chunked',
+	 * 'Content-Encoding: gzip' or 'deflate' and the 'Connection' and
+	 * 'Keep-Alive' headers.
+	 *
+	 * @return stream positioned at the tile content, or null when the
+	 *         response is not '200 OK' or the connection was closed. The
+	 *         body of an error response is skipped when it is framed, see
+	 *         'status'
+	 * @throws IOException
+	 *             also when the tile length is invalid, the connection is
+	 *             then closed
+	 */
 	InputStream readHeader() throws IOException {
+		if (mPending > 0)
+			mPending--;
+
+		mBodyStream = null;
+		mFramedStream = null;
+		status = -1;
+
 		InputStream is = mResponseStream;
-		is.mark(4096);
+		is.mark(BUFFER_SIZE);
 
 		byte[] buf = buffer;
-		boolean first = true;
 		int read = 0;
 		int pos = 0;
 		int end = 0;
-		int len = 0;
+
+		long bodyLength = -1;
+		boolean chunked = false;
+		String encoding = null;
 
 		// header cannot be larger than BUFFER_SIZE for this to work
-		for (; pos < read || (len = is.read(buf, read, BUFFER_SIZE - read)) >= 0; len = 0) {
-			read += len;
-			while (end < read && (buf[end] != '\n'))
+		while (true) {
+			while (end < read && buf[end] != '\n')
+				end++;
+
+			if (end == read) {
+				int len = -1;
+				if (read < BUFFER_SIZE)
+					len = is.read(buf, read, BUFFER_SIZE - read);
+
+				if (len < 0) {
+					if (read > 0)
+						LOG.info("incomplete header");
+					return null;
+				}
+				read += len;
+				continue;
+			}
+
+			// line without '\r\n'
+			int lineEnd = end;
+			if (lineEnd > pos && buf[lineEnd - 1] == '\r')
+				lineEnd--;
+
+			if (status < 0) {
+				status = parseStatus(buf, pos, lineEnd);
+				if (status < 0) {
+					LOG.info("invalid response");
+					return null;
+				}
+			} else if (lineEnd == pos) {
+				// empty line: header end
 				end++;
-			//String line = new String(buf, pos, end - pos - 1);
-			//LOG.info("|" + line + "|");
-
-			if (buf[end] == '\n') {
-				if (first) {
-					// check only for OK
-					first = false;
-					if (!compareBytes(buf, pos, end, RESPONSE_HTTP_OK, 15)){
-						return null;
+				break;
+			} else {
+				String line = new String(buf, pos, lineEnd - pos, "ISO-8859-1");
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+					String value = line.substring(colon + 1).trim();
+
+					if (name.equals("content-length")) {
+						try {
+							bodyLength = Long.parseLong(value);
+						} catch (NumberFormatException e) {
+							LOG.info("invalid content length: " + value);
+							return null;
+						}
+					} else if (name.equals("transfer-encoding")) {
+						chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+					} else if (name.equals("content-encoding")) {
+						encoding = value.toLowerCase(Locale.ENGLISH);
+					} else if (name.equals("connection")) {
+						if (value.toLowerCase(Locale.ENGLISH).contains("close"))
+							mCloseAfterResponse = true;
+					} else if (name.equals("keep-alive")) {
+						parseKeepAlive(value.toLowerCase(Locale.ENGLISH));
 					}
-				} else if (end - pos == 1) {
-					// check empty line (header end)
-					end += 1;
-					break;
 				}
+			}
+
+			pos = ++end;
+		}
+
+		headerTime = System.nanoTime();
+
+		// back to start of the body
+		is.reset();
+		is.mark(0);
+		is.skip(end);
 
+		InputStream body = is;
+		if (chunked)
+			body = new ChunkedInputStream(is);
+		else if (bodyLength >= 0)
+			body = new BoundedInputStream(is, bodyLength);
+
+		if (body != is)
+			mFramedStream = body;
+
+		if (status != STATUS_OK) {
+			LOG.info("response status " + status);
+			if (body != is)
+				drain(body);
+			else
+				close();
+			return null;
+		}
 
-				pos += (end - pos) + 1;
-				end = pos;
+		if (encoding != null && !encoding.equals("identity")) {
+			// without length the body ends when the server closes
+			if (body == is)
+				mCloseAfterResponse = true;
+
+			if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+				body = new GZIPInputStream(body, BUFFER_SIZE);
+			else if (encoding.equals("deflate"))
+				body = new InflaterInputStream(body);
+			else {
+				LOG.info("unsupported content encoding: " + encoding);
+				close();
+				return null;
 			}
 		}
 
-		// check 4 bytes available..
-		while ((read - end) < 4 && (len = is.read(buf, read, BUFFER_SIZE - read)) >= 0)
-			read += len;
+		// tile length at the start of the content
+		int n = 0;
+		int len;
+		while (n < 4 && (len = body.read(buf, n, 4 - n)) >= 0)
+			n += len;
 
-		if (read - len < 4){
+		if (n < 4) {
 			LOG.info("not ok..");
 			return null;
 		}
-		contentLength = decodeInt(buf, end);
-		end += 4;
+		contentLength = decodeInt(buf, 0);
+
+		boolean identity = encoding == null || encoding.equals("identity");
+		if (contentLength < 0 || contentLength > MAX_CONTENT_LENGTH
+				|| (identity && !chunked && bodyLength >= 0
+				&& contentLength != bodyLength - 4)) {
+			// the end of the response is unknown
+			close();
+			throw new IOException("invalid tile length " + contentLength);
+		}
 
-		// back to start of content
-		is.reset();
-		is.mark(0);
-		is.skip(end);
+		mBodyStream = body;
+		return body;
+	}
+
+	/**
+	 * @return status code of 'HTTP/1.x nnn' status line, or -1
+	 */
+	static int parseStatus(byte[] buf, int pos, int end) {
+		int len = RESPONSE_HTTP.length;
+		if (!compareBytes(buf, pos, end, RESPONSE_HTTP, len) || end - pos < len + 5)
+			return -1;
+
+		pos += len + 2;
+		int status = 0;
+		for (int i = 0; i < 3; i++) {
+			byte b = buf[pos + i];
+			if (b < '0' || b > '9')
+				return -1;
+			status = status * 10 + (b - '0');
+		}
+		return status;
+	}
+
+	/**
+	 * Parse 'timeout=n, max=n' of the Keep-Alive header.
+	 */
+	private void parseKeepAlive(String value) {
+		for (String param : value.split(",")) {
+			int eq = param.indexOf('=');
+			if (eq < 0)
+				continue;
 
-		return is;
+			String name = param.substring(0, eq).trim();
+			try {
+				int n = Integer.parseInt(param.substring(eq + 1).trim());
+				if (name.equals("max") && n < mMaxReq)
+					mMaxReq = n;
+				else if (name.equals("timeout"))
+					mKeepAliveTimeout = Math.min(n * 1000, RESPONSE_EXPECTED_TIMEOUT);
+			} catch (NumberFormatException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Read the content of the current response, i.e. contentLength bytes
+	 * after readHeader(), into buf.
+	 *
+	 * @return false when the connection was closed before
+	 */
+	boolean readContent(byte[] buf) throws IOException {
+		InputStream is = mBodyStream;
+		int pos = 0;
+		int len;
+		while (pos < contentLength
+				&& (len = is.read(buf, pos, contentLength - pos)) >= 0)
+			pos += len;
+
+		if (pos != contentLength)
+			return false;
+
+		// consume the end of chunked or compressed bodies so that the next
+		// response can be read
+		if (is != mResponseStream)
+			drain(is);
+		if (mFramedStream != null && mFramedStream != is)
+			drain(mFramedStream);
+
+		mBodyStream = null;
+		mFramedStream = null;
+		return true;
+	}
+
+	private void drain(InputStream is) throws IOException {
+		byte[] buf = buffer;
+		while (is.read(buf, 0, BUFFER_SIZE) >= 0);
 	}
 
 	boolean sendRequest(Tile tile) throws IOException {
+		prepareConnection();
+
+		int len = writeRequest(tile, mRequestBuffer, 0);
+
+		writeRequests(mRequestBuffer, len);
+		mPending = 1;
+
+		return true;
+	}
+
+	/**
+	 * Write requests for tiles[offset] .. tiles[offset + count - 1]
+	 * back-to-back on the keep-alive connection. The responses must then be
+	 * read in order with readHeader().
+	 *
+	 * @return number of requests actually sent, limited by pipeline depth and
+	 *         the remaining requests expected on this connection.
+	 */
+	int sendRequests(Tile[] tiles, int offset, int count) throws IOException {
+		if (count > mPipelineDepth)
+			count = mPipelineDepth;
+
+		if (count <= 1)
+			return sendRequest(tiles[offset]) ? 1 : 0;
+
+		prepareConnection();
+
+		// keep-alive lives left, one was taken by prepareConnection
+		if (count > mMaxReq + 1)
+			count = mMaxReq + 1;
+		mMaxReq -= count - 1;
+
+		int size = count * mMaxRequestLength;
+		if (mRequestBuffer.length < size)
+			mRequestBuffer = new byte[size];
+
+		byte[] request = mRequestBuffer;
+		int pos = 0;
+		for (int i = offset, end = offset + count; i < end; i++)
+			pos = writeRequest(tiles[i], request, pos);
+
+		writeRequests(request, pos);
+		mPending = count;
+
+		return count;
+	}
 
-		if (mSocket != null	&& ((mMaxReq-- <= 0)
-				|| (System.currentTimeMillis() - mLastRequest
-				> RESPONSE_EXPECTED_TIMEOUT))) {
+	private void prepareConnection() throws IOException {
+		Reconnect cause = Reconnect.CLOSED;
+
+		if (mSocket != null) {
+			if (mCloseAfterResponse)
+				cause = Reconnect.SERVER_CLOSE;
+			else if (mMaxReq-- <= 0)
+				cause = Reconnect.MAX_REQUESTS;
+			else if (mPending > 0)
+				cause = Reconnect.PENDING;
+			else if (System.currentTimeMillis() - mLastRequest
+					> mKeepAliveTimeout)
+				cause = Reconnect.IDLE_TIMEOUT;
+			else
+				cause = null;
+		}
+
+		if (mSocket != null	&& cause != null) {
 			try {
 
 				mSocket.close();
@@ -170,58 +467,82 @@ public class LwHttp {
 			 //LOG.info( "not alive  - recreate connection " + mMaxReq + " "
 			 //+(System.currentTimeMillis() - mLastRequest));
 			mSocket = null;
+			mPending = 0;
 		}
 
+		connectTime = 0;
+
 		if (mSocket == null) {
+			if (mMetrics != null)
+				mMetrics.reconnect(cause);
+
 			lwHttpConnect();
 			// we know our server
 			mMaxReq = RESPONSE_EXPECTED_LIVES;
+			mKeepAliveTimeout = RESPONSE_EXPECTED_TIMEOUT;
 			// LOG.info( "create connection");
 		} else {
 			int avail;
 			while ((avail = mResponseStream.available()) > 0) {
 				LOG.info( "Consume left-over bytes: " + avail);
+				if (mMetrics != null)
+					mMetrics.leftOverBytes(avail);
 				mResponseStream.read(buffer);
 			}
 		}
+	}
 
-		byte[] request = mRequestBuffer;
-		int pos = REQUEST_GET_START.length;
-
-		pos = writeInt(tile.zoomLevel, pos, request);
-		request[pos++] = '/';
-		pos = writeInt((int)tile.tileX, pos, request);
-		request[pos++] = '/';
-		pos = writeInt((int)tile.tileY, pos, request);
-
-		int len = REQUEST_GET_END.length;
-		System.arraycopy(REQUEST_GET_END, 0, request, pos, len);
-		len += pos;
-
+	private void writeRequests(byte[] request, int len) throws IOException {
 		try {
 			mCommandStream.write(request, 0, len);
 			mCommandStream.flush();
-			return true;
+			requestTime = System.nanoTime();
+			return;
 		} catch (IOException e) {
 			LOG.info( "recreate connection");
 		}
 
+		if (mMetrics != null)
+			mMetrics.reconnect(Reconnect.WRITE_ERROR);
+
 		lwHttpConnect();
 
 		mCommandStream.write(request, 0, len);
 		mCommandStream.flush();
+		requestTime = System.nanoTime();
+	}
 
-		return true;
+	private int writeRequest(Tile tile, byte[] request, int pos) {
+		int len = REQUEST_GET_START.length;
+		System.arraycopy(REQUEST_GET_START, 0, request, pos, len);
+		pos += len;
+
+		pos = writeInt(tile.zoomLevel, pos, request);
+		request[pos++] = '/';
+		pos = writeInt((int)tile.tileX, pos, request);
+		request[pos++] = '/';
+		pos = writeInt((int)tile.tileY, pos, request);
+
+		len = REQUEST_GET_END.length;
+		System.arraycopy(REQUEST_GET_END, 0, request, pos, len);
+
+		return pos + len;
 	}
 
 	private boolean lwHttpConnect() throws IOException {
+		long start = System.nanoTime();
+
 		if (mSockAddr == null)
 			mSockAddr = new InetSocketAddress(mHost, mPort);
 
+		mCloseAfterResponse = false;
+
 		mSocket = new Socket();
 		mSocket.connect(mSockAddr, 30000);
 		mSocket.setTcpNoDelay(true);
 
+		connectTime += System.nanoTime() - start;
+
 		mCommandStream = mSocket.getOutputStream();
 		mResponseStream = new BufferedInputStream(mSocket.getInputStream(), 4096);
 		return true;
@@ -266,4 +587,115 @@ public class LwHttp {
 				| (buffer[offset + 2] & 0xff) << 8
 				| (buffer[offset + 3] & 0xff);
 	}
+
+	/** reads the data of a chunked body, returns -1 after the last chunk */
+	private static class ChunkedInputStream extends InputStream {
+		private final InputStream mIn;
+		// bytes left in the current chunk
+		private int mRemaining;
+		private boolean mEnd;
+
+		ChunkedInputStream(InputStream in) {
+			mIn = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (mEnd)
+				return -1;
+
+			if (mRemaining == 0) {
+				mRemaining = readChunkSize();
+				if (mRemaining == 0) {
+					// skip trailer up to the empty line
+					while (readLine().length() > 0);
+					mEnd = true;
+					return -1;
+				}
+			}
+
+			int n = mIn.read(buf, off, Math.min(len, mRemaining));
+			if (n < 0)
+				throw new IOException("incomplete chunk");
+
+			mRemaining -= n;
+			if (mRemaining == 0)
+				readLine();
+
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return Math.min(mRemaining, mIn.available());
+		}
+
+		private int readChunkSize() throws IOException {
+			String line = readLine();
+			int ext = line.indexOf(';');
+			if (ext >= 0)
+				line = line.substring(0, ext);
+			try {
+				return Integer.parseInt(line.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid chunk size: " + line);
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = mIn.read()) != '\n') {
+				if (c < 0)
+					throw new IOException("incomplete chunk");
+				if (c != '\r')
+					sb.append((char) c);
+			}
+			return sb.toString();
+		}
+	}
+
+	/** reads up to 'length' bytes of the underlying stream */
+	private static class BoundedInputStream extends InputStream {
+		private final InputStream mIn;
+		private long mRemaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			mIn = in;
+			mRemaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (mRemaining <= 0)
+				return -1;
+
+			int b = mIn.read();
+			if (b >= 0)
+				mRemaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (mRemaining <= 0)
+				return -1;
+
+			int n = mIn.read(buf, off, (int) Math.min(len, mRemaining));
+			if (n > 0)
+				mRemaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(mRemaining, mIn.available());
+		}
+	}
 }
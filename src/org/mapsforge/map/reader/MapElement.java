@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+/**
+ * A decoded tile element: geometry, osm layer and tags. TileDecoder reuses
+ * one instance for all elements of a tile.
+ */
+public class MapElement extends GeometryBuffer {
+
+	/** osm layer [-5 .. 5] -> [0 .. 10] */
+	public int layer;
+
+	public final TagSet tags = new TagSet();
+
+	public MapElement(int numPoints, int numIndices) {
+		super(numPoints, numIndices);
+	}
+
+	@Override
+	public MapElement clear() {
+		super.clear();
+		layer = 5;
+		tags.clear();
+		return this;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.map.reader.GeometryBuffer.GeometryType;
+
+/**
+ * Collects decoded elements as Ways and PointOfInterests for a
+ * MapReadResult.
+ */
+class MapReadResultSink implements TileDataSink {
+
+	private List<Way> mWays;
+	private List<PointOfInterest> mPois;
+	private boolean mSuccess;
+
+	MapReadResultSink() {
+		reset();
+	}
+
+	/** start collecting a new tile */
+	void reset() {
+		mWays = new ArrayList<Way>();
+		mPois = new ArrayList<PointOfInterest>();
+		mSuccess = false;
+	}
+
+	/**
+	 * @return the collected result or null when decoding failed
+	 */
+	MapReadResult getResult() {
+		if (!mSuccess)
+			return null;
+
+		MapReadResultBuilder builder = new MapReadResultBuilder();
+		builder.add(new PoiWayBundle(mPois, mWays));
+		return builder.build();
+	}
+
+	@Override
+	public void process(MapElement element) {
+		List<Tag> tags = new ArrayList<Tag>(Arrays.asList(element.tags.asArray()));
+
+		if (element.type == GeometryType.POINT) {
+			if (element.getNumPoints() > 0)
+				mPois.add(new PointOfInterest((byte) element.layer, tags,
+				        new LatLong(element.getY(0), element.getX(0))));
+		} else {
+			addWays((byte) element.layer, tags, element);
+		}
+	}
+
+	@Override
+	public void completed(boolean success) {
+		mSuccess = success;
+	}
+
+	/**
+	 * Append the elements collected by other.
+	 */
+	void addAll(MapReadResultSink other) {
+		mPois.addAll(other.mPois);
+		mWays.addAll(other.mWays);
+	}
+
+	/**
+	 * Create Ways from the lines or polygons in geom, closes polygon rings.
+	 */
+	private void addWays(byte layer, List<Tag> tags, GeometryBuffer geom) {
+		boolean poly = (geom.type == GeometryType.POLY);
+		int[] index = geom.index;
+		int numIndices = geom.indexPos;
+		int pos = 0;
+
+		for (int i = 0; i < numIndices;) {
+			if (index[i] <= 0) {
+				i++;
+				continue;
+			}
+
+			int rings = 1;
+			if (poly) {
+				while (i + rings < numIndices && index[i + rings] > 0)
+					rings++;
+			}
+
+			LatLong[][] latLongs = new LatLong[rings][];
+			for (int r = 0; r < rings; r++) {
+				int num = index[i + r];
+				LatLong[] ring = new LatLong[poly ? num + 1 : num];
+
+				for (int j = 0; j < num; j++, pos++)
+					ring[j] = new LatLong(geom.getY(pos), geom.getX(pos));
+
+				// close polygon
+				if (poly)
+					ring[num] = ring[0];
+
+				latLongs[r] = ring;
+			}
+			i += rings;
+
+			mWays.add(new Way(layer, tags, latLongs, null));
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Keeps decoded tiles in memory. Entries are evicted in LRU order when the
+ * estimated heap size of all results exceeds the size bound. Results are
+ * shared between callers and must not be modified.
+ */
+public class MapResultCache {
+
+	// rough heap sizes in bytes, assuming 64 bit references
+	private final static int OBJECT_SIZE = 16;
+	private final static int REF_SIZE = 8;
+	private final static int LATLONG_SIZE = OBJECT_SIZE + 2 * 8;
+	private final static int LIST_SIZE = OBJECT_SIZE + 8 + OBJECT_SIZE;
+
+	private static class Entry {
+		final MapReadResult result;
+		final long size;
+
+		Entry(MapReadResult result, long size) {
+			this.result = result;
+			this.size = size;
+		}
+	}
+
+	// access ordered: first entry is the least recently used
+	private final LinkedHashMap<Long, Entry> mEntries =
+	        new LinkedHashMap<Long, Entry>(64, 0.75f, true);
+
+	private final long mMaxSize;
+	private long mSize;
+
+	private int mHits;
+	private int mMisses;
+
+	/**
+	 * @param maxSize
+	 *            max estimated bytes of all cached results
+	 */
+	public MapResultCache(long maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * @return true when the tile is cached, does not change the access order
+	 */
+	public synchronized boolean contains(Tile tile) {
+		return mEntries.containsKey(key(tile));
+	}
+
+	/**
+	 * @return the cached result or null
+	 */
+	public synchronized MapReadResult get(Tile tile) {
+		Entry e = mEntries.get(key(tile));
+		if (e == null) {
+			mMisses++;
+			return null;
+		}
+		mHits++;
+		return e.result;
+	}
+
+	public synchronized void put(Tile tile, MapReadResult result) {
+		long size = estimateSize(result);
+		if (size > mMaxSize)
+			return;
+
+		Entry e = mEntries.put(key(tile), new Entry(result, size));
+		if (e != null)
+			mSize -= e.size;
+
+		mSize += size;
+		trim();
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * @return estimated bytes of all cached results
+	 */
+	public synchronized long size() {
+		return mSize;
+	}
+
+	public synchronized int getHits() {
+		return mHits;
+	}
+
+	public synchronized int getMisses() {
+		return mMisses;
+	}
+
+	private void trim() {
+		Iterator<Entry> it = mEntries.values().iterator();
+		while (mSize > mMaxSize && it.hasNext()) {
+			mSize -= it.next().size;
+			it.remove();
+		}
+	}
+
+	private static Long key(Tile tile) {
+		return Long.valueOf(VtmPackMapDatabase.key(tile.zoomLevel, tile.tileX, tile.tileY));
+	}
+
+	/**
+	 * Estimate the heap size of a result. Tags are not counted as they are
+	 * mostly shared.
+	 */
+	static long estimateSize(MapReadResult result) {
+		long size = OBJECT_SIZE;
+
+		for (PoiWayBundle bundle : result.poiWayBundles) {
+			size += OBJECT_SIZE + 2 * LIST_SIZE;
+
+			List<PointOfInterest> pois = bundle.pois;
+			for (int i = 0, n = pois.size(); i < n; i++) {
+				PointOfInterest p = pois.get(i);
+				size += REF_SIZE + OBJECT_SIZE + LIST_SIZE
+				        + p.tags.size() * REF_SIZE + LATLONG_SIZE;
+			}
+
+			List<Way> ways = bundle.ways;
+			for (int i = 0, n = ways.size(); i < n; i++) {
+				Way w = ways.get(i);
+				size += REF_SIZE + OBJECT_SIZE + LIST_SIZE
+				        + w.tags.size() * REF_SIZE;
+
+				LatLong[][] latLongs = w.latLongs;
+				size += OBJECT_SIZE + latLongs.length * REF_SIZE;
+				for (LatLong[] ring : latLongs)
+					size += OBJECT_SIZE + ring.length * (REF_SIZE + LATLONG_SIZE);
+			}
+		}
+		return size;
+	}
+}
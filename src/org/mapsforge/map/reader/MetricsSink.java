@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Receives per-tile measurements from VtmMapDatabase and connection events
+ * from LwHttp. Implementations must be thread-safe, tiles are loaded on
+ * several connections concurrently.
+ */
+public interface MetricsSink {
+
+	/** why LwHttp opened a new connection */
+	enum Reconnect {
+		/** first connection or connection was closed after an error */
+		CLOSED,
+		/** expected keep-alive requests used up */
+		MAX_REQUESTS,
+		/** connection was idle longer than the expected keep-alive timeout */
+		IDLE_TIMEOUT,
+		/** responses of a previous request were not read */
+		PENDING,
+		/** sending the request failed */
+		WRITE_ERROR,
+		/** server announced 'Connection: close' */
+		SERVER_CLOSE
+	}
+
+	/**
+	 * @param stats
+	 *            measurements of the tile, only valid during the call
+	 */
+	void tileLoaded(Tile tile, TileStats stats);
+
+	void reconnect(Reconnect cause);
+
+	/**
+	 * @param bytes
+	 *            left-over bytes of a previous response that were drained
+	 *            from the connection
+	 */
+	void leftOverBytes(int bytes);
+}
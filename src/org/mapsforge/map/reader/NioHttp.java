@@ -0,0 +1,821 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Non-blocking tile transport: one I/O thread multiplexes requests on a set
+ * of keep-alive connections with a Selector. Requests are pipelined on each
+ * connection and the responses are parsed incrementally. Chunked and
+ * gzip or deflate compressed bodies are collected and decoded before the
+ * tile is passed on. All Callback methods are called on the I/O thread and
+ * should hand the tile on to another thread instead of blocking it.
+ *
+ * With a TilePriority pending requests are sent in order of priority, and
+ * requests for tiles that are no longer needed are dropped before they are
+ * sent, or their content is skipped when they are in flight.
+ */
+public class NioHttp implements Runnable {
+	private static final Logger LOG = Logger.getLogger(NioHttp.class.getName());
+
+	public interface Callback {
+		/**
+		 * @param data
+		 *            the tile content
+		 */
+		void completed(Tile tile, byte[] data);
+
+		void failed(Tile tile);
+
+		/**
+		 * Called when the TilePriority says the tile is no longer needed.
+		 *
+		 * @return true to drop the request, no other method is called then
+		 */
+		boolean cancel(Tile tile);
+	}
+
+	private final static Comparator<Request> PRIORITY_ORDER = new Comparator<Request>() {
+		@Override
+		public int compare(Request a, Request b) {
+			return Double.compare(a.priority, b.priority);
+		}
+	};
+
+	private final static int BUFFER_SIZE = 8192;
+	private final static int MAX_HEADER_SIZE = 4096;
+	private final static int RESPONSE_EXPECTED_LIVES = 100;
+	private final static int RESPONSE_EXPECTED_TIMEOUT = 10000;
+	private final static int TIMEOUT = 30000;
+	private final static int MAX_RETRIES = 1;
+	private final static String TILE_EXT = ".vtm";
+
+	// response parser states
+	private final static int STATE_HEADER = 0;
+	private final static int STATE_LENGTH = 1;
+	private final static int STATE_CONTENT = 2;
+	private final static int STATE_SKIP = 3;
+	// collect body of bodyLength bytes
+	private final static int STATE_BODY = 4;
+	// chunked body: size line, data, line end after data, trailer
+	private final static int STATE_CHUNK_SIZE = 5;
+	private final static int STATE_CHUNK_DATA = 6;
+	private final static int STATE_CHUNK_END = 7;
+	private final static int STATE_TRAILER = 8;
+
+	private static class Request {
+		final Tile tile;
+		final Callback callback;
+		int retries;
+		double priority;
+		boolean cancelled;
+
+		Request(Tile tile, Callback callback) {
+			this.tile = tile;
+			this.callback = callback;
+		}
+	}
+
+	private class Connection {
+		SocketChannel channel;
+		SelectionKey key;
+
+		// requests sent or waiting to be sent, in order of responses
+		final LinkedList<Request> inFlight = new LinkedList<Request>();
+		// request bytes not yet written, in read mode
+		ByteBuffer out = ByteBuffer.allocate(1024);
+
+		int requestsLeft;
+		// responses received since connect
+		int responses;
+		long lastActive;
+		boolean closeAfterResponse;
+
+		int state;
+		final byte[] header = new byte[MAX_HEADER_SIZE];
+		int headerPos;
+		int bodyLength;
+		boolean ok;
+		boolean chunked;
+		// chunked body of an error response, not collected
+		boolean discard;
+		// content encoding or null
+		String encoding;
+
+		// collected body of chunked or compressed responses
+		byte[] body;
+		int bodyPos;
+		int chunkRemaining;
+
+		byte[] content;
+		int contentPos;
+		int contentLength;
+		int skip;
+
+		void reset() {
+			state = STATE_HEADER;
+			headerPos = 0;
+			bodyLength = -1;
+			closeAfterResponse = false;
+			chunked = false;
+			discard = false;
+			encoding = null;
+			body = null;
+			bodyPos = 0;
+		}
+	}
+
+	private final String mHost;
+	private final int mPort;
+	private final String mPath;
+	private final int mPipelineDepth;
+
+	private final Connection[] mConnections;
+	private final ConcurrentLinkedQueue<Request> mQueue = new ConcurrentLinkedQueue<Request>();
+	// requests waiting for a connection, only used by the I/O thread
+	private final LinkedList<Request> mPending = new LinkedList<Request>();
+
+	private volatile TilePriority mPriority;
+
+	private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private Selector mSelector;
+	private Thread mThread;
+	private volatile boolean mRunning;
+
+	/**
+	 * @param numConnections
+	 *            number of keep-alive connections
+	 * @param pipelineDepth
+	 *            max number of requests in flight per connection
+	 */
+	public NioHttp(String urlString, int numConnections, int pipelineDepth)
+	        throws MalformedURLException {
+		URL url = new URL(urlString);
+
+		int port = url.getPort();
+		if (port < 0)
+			port = 80;
+
+		mHost = url.getHost();
+		mPort = port;
+		mPath = url.getPath();
+		mPipelineDepth = pipelineDepth < 1 ? 1 : pipelineDepth;
+
+		mConnections = new Connection[numConnections];
+		for (int i = 0; i < numConnections; i++)
+			mConnections[i] = new Connection();
+	}
+
+	public synchronized void start() throws IOException {
+		if (mRunning)
+			return;
+
+		mSelector = Selector.open();
+		mRunning = true;
+		mThread = new Thread(this, "NioHttp");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	public synchronized void close() {
+		if (!mRunning)
+			return;
+
+		mRunning = false;
+		mSelector.wakeup();
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @param priority
+	 *            orders pending requests, null for FIFO order
+	 */
+	public void setPriority(TilePriority priority) {
+		mPriority = priority;
+	}
+
+	/**
+	 * Queue a request, can be called from any thread.
+	 */
+	public void request(Tile tile, Callback callback) {
+		mQueue.add(new Request(tile, callback));
+		mSelector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (mRunning) {
+			try {
+				assignRequests();
+
+				mSelector.select(1000);
+
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					handle(key);
+				}
+
+				checkTimeouts();
+			} catch (IOException e) {
+				LOG.info("selector failed: " + e.getMessage());
+			}
+		}
+
+		for (Connection c : mConnections)
+			disconnect(c, false);
+
+		Request r;
+		while ((r = mPending.poll()) != null)
+			r.callback.failed(r.tile);
+		while ((r = mQueue.poll()) != null)
+			r.callback.failed(r.tile);
+
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		Connection c = (Connection) key.attachment();
+		try {
+			if (!key.isValid())
+				return;
+
+			if (key.isConnectable() && c.channel.finishConnect())
+				updateInterest(c);
+
+			if (key.isValid() && key.isWritable())
+				write(c);
+
+			if (key.isValid() && key.isReadable())
+				read(c);
+
+		} catch (IOException e) {
+			LOG.info("connection failed: " + e.getMessage());
+			disconnect(c, true);
+		}
+	}
+
+	private void assignRequests() {
+		Request r;
+		while ((r = mQueue.poll()) != null)
+			mPending.add(r);
+
+		if (mPending.isEmpty())
+			return;
+
+		long now = System.currentTimeMillis();
+
+		Connection c = selectConnection(now);
+		if (c == null)
+			return;
+
+		TilePriority priority = mPriority;
+		if (priority != null)
+			prioritize(priority);
+
+		for (; c != null && !mPending.isEmpty(); c = selectConnection(now)) {
+			r = mPending.poll();
+			try {
+				if (c.channel == null)
+					connect(c);
+
+				addRequest(c, r);
+			} catch (IOException e) {
+				LOG.info(r.tile + " could not connect: " + e.getMessage());
+				disconnect(c, true);
+				r.callback.failed(r.tile);
+			}
+		}
+	}
+
+	/**
+	 * Drop pending requests that are no longer needed and sort the others
+	 * by priority, requests with equal priority keep their order.
+	 */
+	private void prioritize(TilePriority priority) {
+		for (Iterator<Request> it = mPending.iterator(); it.hasNext();) {
+			Request r = it.next();
+			r.priority = priority.getPriority(r.tile);
+			if (r.priority < 0 && r.callback.cancel(r.tile))
+				it.remove();
+		}
+		Collections.sort(mPending, PRIORITY_ORDER);
+	}
+
+	/**
+	 * @return connection with fewest requests in flight that can take one
+	 *         more, or null
+	 */
+	private Connection selectConnection(long now) {
+		Connection best = null;
+		for (Connection c : mConnections) {
+			if (c.channel != null && c.inFlight.isEmpty()
+			        && (c.requestsLeft <= 0
+			        || now - c.lastActive > RESPONSE_EXPECTED_TIMEOUT)) {
+				// keep-alive probably closed by server
+				disconnect(c, false);
+			}
+
+			if (c.inFlight.size() >= mPipelineDepth)
+				continue;
+			if (c.channel != null && (c.requestsLeft <= 0 || c.closeAfterResponse))
+				continue;
+
+			if (best == null || c.inFlight.size() < best.inFlight.size())
+				best = c;
+		}
+		return best;
+	}
+
+	private void connect(Connection c) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.connect(new InetSocketAddress(mHost, mPort));
+
+		c.channel = channel;
+		c.key = channel.register(mSelector, SelectionKey.OP_CONNECT, c);
+		c.requestsLeft = RESPONSE_EXPECTED_LIVES;
+		c.responses = 0;
+		c.lastActive = System.currentTimeMillis();
+		c.out.clear().flip();
+		c.reset();
+	}
+
+	private void addRequest(Connection c, Request r) {
+		Tile tile = r.tile;
+		byte[] request = ("GET " + mPath + tile.zoomLevel + "/" + tile.tileX + "/"
+		        + tile.tileY + TILE_EXT + " HTTP/1.1\n"
+		        + "Host: " + mHost + "\n"
+		        + "Accept-Encoding: gzip, deflate\n"
+		        + "Connection: Keep-Alive\n\n").getBytes();
+
+		ByteBuffer out = c.out;
+		out.compact();
+		if (out.remaining() < request.length) {
+			ByteBuffer tmp = ByteBuffer.allocate(out.capacity() * 2 + request.length);
+			out.flip();
+			tmp.put(out);
+			out = c.out = tmp;
+		}
+		out.put(request);
+		out.flip();
+
+		c.inFlight.add(r);
+		c.requestsLeft--;
+		updateInterest(c);
+	}
+
+	private void updateInterest(Connection c) {
+		if (c.key == null || !c.key.isValid())
+			return;
+
+		if (c.channel.isConnectionPending()) {
+			c.key.interestOps(SelectionKey.OP_CONNECT);
+			return;
+		}
+
+		int ops = SelectionKey.OP_READ;
+		if (c.out.hasRemaining())
+			ops |= SelectionKey.OP_WRITE;
+
+		c.key.interestOps(ops);
+	}
+
+	private void write(Connection c) throws IOException {
+		c.channel.write(c.out);
+		c.lastActive = System.currentTimeMillis();
+		updateInterest(c);
+	}
+
+	private void read(Connection c) throws IOException {
+		ByteBuffer in = mReadBuffer;
+		in.clear();
+
+		int len = c.channel.read(in);
+		if (len < 0) {
+			if (!c.inFlight.isEmpty() || c.state != STATE_HEADER || c.headerPos > 0)
+				LOG.info("connection closed by server");
+			disconnect(c, true);
+			return;
+		}
+		in.flip();
+		c.lastActive = System.currentTimeMillis();
+
+		// stop when the connection was closed after a response
+		while (in.hasRemaining() && c.channel != null) {
+			if (c.inFlight.isEmpty())
+				throw new IOException("unexpected response");
+
+			switch (c.state) {
+			case STATE_HEADER:
+				parseHeader(c, in);
+				break;
+
+			case STATE_LENGTH:
+				c.header[c.headerPos++] = in.get();
+				if (c.headerPos < 4)
+					break;
+
+				c.contentLength = LwHttp.decodeInt(c.header, 0);
+				if (c.contentLength < 0
+				        || (c.bodyLength >= 0 && c.contentLength != c.bodyLength - 4))
+					throw new IOException("invalid content length " + c.contentLength);
+
+				if (isCancelled(c.inFlight.peek())) {
+					// skip content of a tile that is no longer needed
+					c.skip = c.contentLength;
+					c.state = STATE_SKIP;
+					if (c.skip == 0)
+						finishResponse(c, false);
+					break;
+				}
+
+				c.content = new byte[c.contentLength];
+				c.contentPos = 0;
+				c.state = STATE_CONTENT;
+				if (c.contentLength == 0)
+					finishResponse(c, true);
+				break;
+
+			case STATE_CONTENT:
+				int n = Math.min(in.remaining(), c.contentLength - c.contentPos);
+				in.get(c.content, c.contentPos, n);
+				c.contentPos += n;
+				if (c.contentPos == c.contentLength)
+					finishResponse(c, true);
+				break;
+
+			case STATE_SKIP:
+				n = Math.min(in.remaining(), c.skip);
+				in.position(in.position() + n);
+				c.skip -= n;
+				if (c.skip == 0)
+					finishResponse(c, false);
+				break;
+
+			case STATE_BODY:
+				n = Math.min(in.remaining(), c.bodyLength - c.bodyPos);
+				appendBody(c, in, n);
+				if (c.bodyPos == c.bodyLength)
+					finishBody(c);
+				break;
+
+			case STATE_CHUNK_SIZE:
+				if (!readLine(c, in))
+					break;
+
+				String line = new String(c.header, 0, c.headerPos, "ISO-8859-1");
+				c.headerPos = 0;
+				int ext = line.indexOf(';');
+				if (ext >= 0)
+					line = line.substring(0, ext);
+				try {
+					c.chunkRemaining = Integer.parseInt(line.trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("invalid chunk size: " + line);
+				}
+				c.state = c.chunkRemaining == 0 ? STATE_TRAILER : STATE_CHUNK_DATA;
+				break;
+
+			case STATE_CHUNK_DATA:
+				n = Math.min(in.remaining(), c.chunkRemaining);
+				if (c.discard)
+					in.position(in.position() + n);
+				else
+					appendBody(c, in, n);
+				c.chunkRemaining -= n;
+				if (c.chunkRemaining == 0)
+					c.state = STATE_CHUNK_END;
+				break;
+
+			case STATE_CHUNK_END:
+				if (readLine(c, in)) {
+					c.headerPos = 0;
+					c.state = STATE_CHUNK_SIZE;
+				}
+				break;
+
+			case STATE_TRAILER:
+				if (readLine(c, in)) {
+					boolean end = (c.headerPos == 0);
+					c.headerPos = 0;
+					if (end)
+						finishBody(c);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Consume header bytes up to the empty line that ends the header.
+	 */
+	private void parseHeader(Connection c, ByteBuffer in) throws IOException {
+		byte[] h = c.header;
+
+		while (in.hasRemaining()) {
+			if (c.headerPos == MAX_HEADER_SIZE)
+				throw new IOException("header too large");
+
+			byte b = in.get();
+			h[c.headerPos++] = b;
+
+			if (b != '\n')
+				continue;
+
+			// check for empty line: '\n\n' or '\n\r\n'
+			int p = c.headerPos;
+			if (!((p >= 2 && h[p - 2] == '\n')
+			        || (p >= 3 && h[p - 2] == '\r' && h[p - 3] == '\n')))
+				continue;
+
+			String header = new String(h, 0, p, "ISO-8859-1");
+			String value;
+
+			int lineEnd = header.indexOf('\n');
+			if (lineEnd > 0 && h[lineEnd - 1] == '\r')
+				lineEnd--;
+
+			int status = LwHttp.parseStatus(h, 0, lineEnd);
+			if (status < 0)
+				throw new IOException("invalid response");
+
+			c.ok = (status == LwHttp.STATUS_OK);
+
+			if ((value = getHeader(header, "content-length")) != null) {
+				try {
+					c.bodyLength = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					throw new IOException("invalid header");
+				}
+			}
+
+			if ((value = getHeader(header, "transfer-encoding")) != null)
+				c.chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+
+			if ((value = getHeader(header, "content-encoding")) != null
+			        && !(value = value.toLowerCase(Locale.ENGLISH)).equals("identity")) {
+				if (value.equals("gzip") || value.equals("x-gzip") || value.equals("deflate"))
+					c.encoding = value;
+				else
+					throw new IOException("unsupported content encoding: " + value);
+			}
+
+			if ((value = getHeader(header, "connection")) != null)
+				c.closeAfterResponse = value.toLowerCase(Locale.ENGLISH).contains("close");
+
+			c.headerPos = 0;
+			if (c.ok && c.chunked) {
+				c.state = STATE_CHUNK_SIZE;
+			} else if (c.ok && c.encoding != null) {
+				if (c.bodyLength < 0)
+					throw new IOException("compressed response without length");
+				c.body = new byte[c.bodyLength];
+				c.state = STATE_BODY;
+				if (c.bodyLength == 0)
+					finishBody(c);
+			} else if (c.ok) {
+				c.state = STATE_LENGTH;
+			} else {
+				LOG.info(c.inFlight.peek().tile + " "
+				        + header.substring(0, header.indexOf('\n')).trim());
+
+				// skip the body to keep the connection
+				if (c.chunked) {
+					c.discard = true;
+					c.state = STATE_CHUNK_SIZE;
+				} else if (c.bodyLength >= 0) {
+					c.skip = c.bodyLength;
+					c.state = STATE_SKIP;
+					if (c.skip == 0)
+						finishResponse(c, false);
+				} else {
+					// body ends with the connection
+					c.closeAfterResponse = true;
+					finishResponse(c, false);
+				}
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @return the value of the header field 'name', matched ignoring case,
+	 *         or null
+	 */
+	private static String getHeader(String header, String name) {
+		int len = name.length();
+		int pos = header.indexOf('\n');
+
+		while (pos >= 0) {
+			pos++;
+			if (header.regionMatches(true, pos, name, 0, len)
+			        && pos + len < header.length()
+			        && header.charAt(pos + len) == ':') {
+				pos += len + 1;
+				int end = header.indexOf('\n', pos);
+				return header.substring(pos, end).trim();
+			}
+			pos = header.indexOf('\n', pos);
+		}
+		return null;
+	}
+
+	/**
+	 * Consume bytes of a line into the header buffer.
+	 *
+	 * @return true when the line is complete, the header buffer then holds
+	 *         the line without line end
+	 */
+	private static boolean readLine(Connection c, ByteBuffer in) throws IOException {
+		while (in.hasRemaining()) {
+			byte b = in.get();
+			if (b == '\n')
+				return true;
+			if (b == '\r')
+				continue;
+			if (c.headerPos == MAX_HEADER_SIZE)
+				throw new IOException("line too long");
+			c.header[c.headerPos++] = b;
+		}
+		return false;
+	}
+
+	private static void appendBody(Connection c, ByteBuffer in, int n) {
+		if (c.body == null)
+			c.body = new byte[Math.max(BUFFER_SIZE, n)];
+		else if (c.bodyPos + n > c.body.length)
+			c.body = Arrays.copyOf(c.body, Math.max(c.bodyPos + n, c.body.length * 2));
+
+		in.get(c.body, c.bodyPos, n);
+		c.bodyPos += n;
+	}
+
+	/**
+	 * Decompress the collected body and pass the tile content on.
+	 */
+	private void finishBody(Connection c) throws IOException {
+		if (c.discard) {
+			finishResponse(c, false);
+			return;
+		}
+
+		byte[] data = c.body;
+		int length = c.bodyPos;
+		if (data == null)
+			data = new byte[0];
+
+		if (c.encoding != null) {
+			data = inflate(data, length, !c.encoding.equals("deflate"));
+			length = data.length;
+		}
+
+		if (length < 4 || LwHttp.decodeInt(data, 0) != length - 4)
+			throw new IOException("invalid content length");
+
+		if (isCancelled(c.inFlight.peek())) {
+			finishResponse(c, false);
+			return;
+		}
+
+		c.content = Arrays.copyOfRange(data, 4, length);
+		finishResponse(c, true);
+	}
+
+	private static byte[] inflate(byte[] data, int length, boolean gzip) throws IOException {
+		InputStream is = new ByteArrayInputStream(data, 0, length);
+		is = gzip ? new GZIPInputStream(is) : new InflaterInputStream(is);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+		byte[] buf = new byte[BUFFER_SIZE];
+		int len;
+		while ((len = is.read(buf)) >= 0)
+			out.write(buf, 0, len);
+
+		return out.toByteArray();
+	}
+
+	private boolean isCancelled(Request r) {
+		TilePriority priority = mPriority;
+		if (priority == null || priority.getPriority(r.tile) >= 0)
+			return false;
+
+		r.cancelled = r.callback.cancel(r.tile);
+		return r.cancelled;
+	}
+
+	private void finishResponse(Connection c, boolean success) {
+		Request r = c.inFlight.poll();
+		byte[] content = c.content;
+		c.responses++;
+
+		c.content = null;
+		boolean close = c.closeAfterResponse;
+		c.reset();
+
+		if (!r.cancelled) {
+			if (success)
+				r.callback.completed(r.tile, content);
+			else
+				r.callback.failed(r.tile);
+		}
+
+		if (close)
+			disconnect(c, true);
+	}
+
+	private void checkTimeouts() {
+		long now = System.currentTimeMillis();
+		for (Connection c : mConnections) {
+			if (c.channel != null && !c.inFlight.isEmpty()
+			        && now - c.lastActive > TIMEOUT) {
+				LOG.info("connection timeout");
+				disconnect(c, true);
+			}
+		}
+	}
+
+	/**
+	 * Close connection.
+	 *
+	 * @param retry
+	 *            requeue pending requests. Only the request whose response
+	 *            was due on a connection that did not deliver any response
+	 *            counts as attempted, it fails when it was already retried.
+	 *            Otherwise the server just closed a keep-alive connection.
+	 */
+	private void disconnect(Connection c, boolean retry) {
+		if (c.channel != null) {
+			try {
+				c.channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		c.channel = null;
+		c.key = null;
+		c.content = null;
+		c.reset();
+
+		// keep order of pending requests
+		Request r;
+		while ((r = c.inFlight.pollLast()) != null) {
+			if (r.cancelled)
+				continue;
+
+			if (c.inFlight.isEmpty() && c.responses == 0)
+				r.retries++;
+
+			if (retry && mRunning && r.retries <= MAX_RETRIES)
+				mPending.addFirst(r);
+			else
+				r.callback.failed(r.tile);
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.nio.ByteBuffer;
+
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.GeometryBuffer.GeometryType;
+
+/**
+ * Read-only view on a CompactTile in an OffHeapTileStore chunk. Reads the
+ * chunk in place, only tags are decoded to Strings on access.
+ *
+ * Layout of a serialized tile:
+ *
+ * <pre>
+ * int numElements, numTags, numTagIds, numIndex, numPoints
+ * byte types[numElements], layers[numElements]
+ * int tagOffsets[numElements + 1], indexOffsets[..], pointOffsets[..]
+ * short tagIds[numTagIds]
+ * int index[numIndex]
+ * short points[numPoints]
+ * int tagStrings[numTags]: offset of key and value of each tag from the
+ *     start of the tile, or ref(key, value) for tags of the TagDictionary
+ * (int length, UTF-8 bytes) key, value for each other tag
+ * </pre>
+ */
+public class OffHeapTile {
+
+	private final static GeometryType[] TYPES = GeometryType.values();
+
+	private final static int HEADER_SIZE = 5 * 4;
+
+	public final Tile tile;
+
+	final OffHeapTileStore.Entry entry;
+
+	// shared with other views, only absolute reads
+	private final ByteBuffer mBuffer;
+	private final TagDictionary mDictionary;
+
+	private final int mNumElements;
+	private final int mNumTags;
+
+	// absolute positions of the tile and its sections
+	private final int mBase;
+	private final int mTypes;
+	private final int mLayers;
+	private final int mTagOffsets;
+	private final int mIndexOffsets;
+	private final int mPointOffsets;
+	private final int mTagIds;
+	private final int mIndex;
+	private final int mPoints;
+	private final int mTagStrings;
+
+	private byte[] mTmp;
+
+	OffHeapTile(Tile tile, ByteBuffer buffer, int base, OffHeapTileStore.Entry entry,
+	        TagDictionary dictionary) {
+		this.tile = tile;
+		this.entry = entry;
+		mBuffer = buffer;
+		mDictionary = dictionary;
+		mBase = base;
+
+		mNumElements = buffer.getInt(base);
+		mNumTags = buffer.getInt(base + 4);
+		int numTagIds = buffer.getInt(base + 8);
+		int numIndex = buffer.getInt(base + 12);
+		int numPoints = buffer.getInt(base + 16);
+
+		mTypes = base + HEADER_SIZE;
+		mLayers = mTypes + mNumElements;
+		mTagOffsets = mLayers + mNumElements;
+		mIndexOffsets = mTagOffsets + (mNumElements + 1) * 4;
+		mPointOffsets = mIndexOffsets + (mNumElements + 1) * 4;
+		mTagIds = mPointOffsets + (mNumElements + 1) * 4;
+		mIndex = mTagIds + numTagIds * 2;
+		mPoints = mIndex + numIndex * 4;
+		mTagStrings = mPoints + numPoints * 2;
+	}
+
+	public int getNumElements() {
+		return mNumElements;
+	}
+
+	public GeometryType getType(int element) {
+		return TYPES[mBuffer.get(mTypes + element)];
+	}
+
+	public int getLayer(int element) {
+		return mBuffer.get(mLayers + element);
+	}
+
+	public int getNumTags(int element) {
+		return offset(mTagOffsets, element + 1) - offset(mTagOffsets, element);
+	}
+
+	/**
+	 * @return the shared Tag of the dictionary, or a new Tag with interned
+	 *         key
+	 */
+	public Tag getTag(int element, int i) {
+		int id = mBuffer.getShort(mTagIds + (offset(mTagOffsets, element) + i) * 2);
+		return readTag(id);
+	}
+
+	/**
+	 * @return number of entries in the geometry index, 0 for points
+	 */
+	public int getNumIndices(int element) {
+		return offset(mIndexOffsets, element + 1) - offset(mIndexOffsets, element);
+	}
+
+	/**
+	 * @return points of line or ring i, 0 separates polygons
+	 */
+	public int getIndex(int element, int i) {
+		return mBuffer.getInt(mIndex + (offset(mIndexOffsets, element) + i) * 4);
+	}
+
+	public int getNumPoints(int element) {
+		return offset(mPointOffsets, element + 1) - offset(mPointOffsets, element);
+	}
+
+	/**
+	 * @return x of point in tile units
+	 */
+	public int getX(int element, int point) {
+		return mBuffer.getShort(mPoints + (offset(mPointOffsets, element) + point) * 4);
+	}
+
+	/**
+	 * @return y of point in tile units
+	 */
+	public int getY(int element, int point) {
+		return mBuffer.getShort(mPoints + (offset(mPointOffsets, element) + point) * 4 + 2);
+	}
+
+	/**
+	 * @return a heap copy of the tile
+	 */
+	public CompactTile toCompactTile() {
+		int n = mNumElements;
+
+		Tag[] tags = new Tag[mNumTags];
+		for (int i = 0; i < tags.length; i++)
+			tags[i] = readTag(i);
+
+		byte[] types = new byte[n];
+		byte[] layers = new byte[n];
+		for (int i = 0; i < n; i++) {
+			types[i] = mBuffer.get(mTypes + i);
+			layers[i] = mBuffer.get(mLayers + i);
+		}
+
+		int[] tagOffsets = readInts(mTagOffsets, n + 1);
+		int[] indexOffsets = readInts(mIndexOffsets, n + 1);
+		int[] pointOffsets = readInts(mPointOffsets, n + 1);
+
+		return new CompactTile(tile, tags, types, layers, tagOffsets, indexOffsets,
+		                       pointOffsets,
+		                       readShorts(mTagIds, tagOffsets[n]),
+		                       readInts(mIndex, indexOffsets[n]),
+		                       readShorts(mPoints, pointOffsets[n] * 2));
+	}
+
+	/**
+	 * @return the elements as a new MapReadResult, allocated on the heap on
+	 *         every call
+	 */
+	public MapReadResult toMapReadResult() {
+		return toCompactTile().toMapReadResult();
+	}
+
+	private int offset(int section, int element) {
+		return mBuffer.getInt(section + element * 4);
+	}
+
+	/**
+	 * @return negative reference to a tag of the dictionary. Key and value
+	 *         index fit in 15 bits as they are below the dictionary offset
+	 */
+	static int ref(int key, int value) {
+		return -1 - (key << 15 | value);
+	}
+
+	private Tag readTag(int id) {
+		int pos = mBuffer.getInt(mTagStrings + id * 4);
+		if (pos < 0) {
+			int ref = -1 - pos;
+			return mDictionary.getTag(ref >>> 15, ref & 0x7fff);
+		}
+
+		pos += mBase;
+		int keyLength = mBuffer.getInt(pos);
+		String key = readString(pos + 4, keyLength).intern();
+		pos += 4 + keyLength;
+		String value = readString(pos + 4, mBuffer.getInt(pos));
+		return new Tag(key, value);
+	}
+
+	private String readString(int pos, int length) {
+		if (mTmp == null || mTmp.length < length)
+			mTmp = new byte[Math.max(length, 64)];
+
+		ByteBuffer buf = mBuffer.duplicate();
+		buf.position(pos);
+		buf.get(mTmp, 0, length);
+		return new String(mTmp, 0, length, OffHeapTileStore.UTF8);
+	}
+
+	private int[] readInts(int pos, int count) {
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++)
+			values[i] = mBuffer.getInt(pos + i * 4);
+		return values;
+	}
+
+	private short[] readShorts(int pos, int count) {
+		short[] values = new short[count];
+		for (int i = 0; i < count; i++)
+			values[i] = mBuffer.getShort(pos + i * 2);
+		return values;
+	}
+
+	static int serializedSize(CompactTile tile, byte[][] strings) {
+		int n = tile.types.length;
+		int size = HEADER_SIZE + n * 2 + (n + 1) * 12
+		        + tile.tagIds.length * 2 + tile.index.length * 4 + tile.points.length * 2
+		        + tile.tags.length * 4;
+
+		for (byte[] s : strings)
+			if (s != null)
+				size += 4 + s.length;
+
+		return size;
+	}
+
+	/**
+	 * Serialize tile at the position of buf.
+	 *
+	 * @param strings
+	 *            UTF-8 key and value of each tag, null for dictionary tags
+	 * @param refs
+	 *            ref() of the dictionary tags
+	 */
+	static void write(ByteBuffer buf, CompactTile tile, byte[][] strings, int[] refs) {
+		int base = buf.position();
+
+		buf.putInt(tile.types.length);
+		buf.putInt(tile.tags.length);
+		buf.putInt(tile.tagIds.length);
+		buf.putInt(tile.index.length);
+		buf.putInt(tile.points.length);
+
+		buf.put(tile.types);
+		buf.put(tile.layers);
+		putInts(buf, tile.tagOffsets);
+		putInts(buf, tile.indexOffsets);
+		putInts(buf, tile.pointOffsets);
+
+		buf.asShortBuffer().put(tile.tagIds);
+		buf.position(buf.position() + tile.tagIds.length * 2);
+		putInts(buf, tile.index);
+		buf.asShortBuffer().put(tile.points);
+		buf.position(buf.position() + tile.points.length * 2);
+
+		int pos = buf.position() - base + tile.tags.length * 4;
+		for (int i = 0; i < tile.tags.length; i++) {
+			if (strings[i * 2] == null) {
+				buf.putInt(refs[i]);
+				continue;
+			}
+			buf.putInt(pos);
+			pos += 8 + strings[i * 2].length + strings[i * 2 + 1].length;
+		}
+
+		for (byte[] s : strings) {
+			if (s == null)
+				continue;
+			buf.putInt(s.length);
+			buf.put(s);
+		}
+	}
+
+	private static void putInts(ByteBuffer buf, int[] values) {
+		buf.asIntBuffer().put(values);
+		buf.position(buf.position() + values.length * 4);
+	}
+}
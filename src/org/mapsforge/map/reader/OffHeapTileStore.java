@@ -0,0 +1,386 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Keeps CompactTiles serialized in direct ByteBuffers, outside of the Java
+ * heap, so that the number of cached tiles does not affect GC.
+ *
+ * Memory is allocated in slabs of equal size. Each slab is split into
+ * chunks of one power of two size class, a tile takes the smallest chunk
+ * that holds it. When memory is exhausted the least recently used tile of
+ * the size class is evicted, or a slab of another class is emptied and
+ * reassigned when the class has no tiles to evict.
+ *
+ * acquire() returns an OffHeapTile that reads the chunk in place. The tile
+ * is not evicted until the view is passed to release(). Its
+ * toMapReadResult() copies the elements to the heap, callers that need the
+ * same tile repeatedly should keep that copy instead, like VtmMapDatabase
+ * does with its memory cache.
+ *
+ * Tags of the TagDictionary are stored as key and value index, only other
+ * tags are stored as strings.
+ */
+public class OffHeapTileStore {
+
+	/** default slab size in bytes */
+	public final static int DEFAULT_SLAB_SIZE = 1 << 20;
+
+	private final static int MIN_CHUNK_SHIFT = 10;
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	static class Slab {
+		final ByteBuffer buffer;
+		int sizeClass;
+		int chunkSize;
+		// entry per chunk, null when free
+		Entry[] chunks;
+		int[] free;
+		int numFree;
+
+		Slab(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		void init(int sizeClass) {
+			this.sizeClass = sizeClass;
+			chunkSize = 1 << (MIN_CHUNK_SHIFT + sizeClass);
+
+			int numChunks = buffer.capacity() / chunkSize;
+			chunks = new Entry[numChunks];
+			free = new int[numChunks];
+			for (int i = 0; i < numChunks; i++)
+				free[i] = numChunks - 1 - i;
+			numFree = numChunks;
+		}
+	}
+
+	static class Entry {
+		final Long key;
+		final Tile tile;
+		final Slab slab;
+		final int chunk;
+		// views in use
+		int pins;
+		// evicted or replaced while pinned, free the chunk on release
+		boolean removed;
+
+		Entry(Long key, Tile tile, Slab slab, int chunk) {
+			this.key = key;
+			this.tile = tile;
+			this.slab = slab;
+			this.chunk = chunk;
+		}
+	}
+
+	private final int mSlabSize;
+	private final int mMaxSlabs;
+	private final int mNumClasses;
+
+	private final List<Slab> mSlabs = new ArrayList<Slab>();
+	// slabs per size class
+	private final List<List<Slab>> mClassSlabs;
+	// entries per size class in LRU order
+	private final List<LinkedHashMap<Long, Entry>> mLru;
+	private final HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+
+	private final TagDictionary mDictionary;
+
+	/**
+	 * @param maxSize
+	 *            max bytes of off-heap memory, at least one slab is used
+	 */
+	public OffHeapTileStore(long maxSize) {
+		this(maxSize, DEFAULT_SLAB_SIZE, TagDictionary.DEFAULT);
+	}
+
+	/**
+	 * @param dictionary
+	 *            the dictionary the tiles were decoded with
+	 */
+	public OffHeapTileStore(long maxSize, TagDictionary dictionary) {
+		this(maxSize, DEFAULT_SLAB_SIZE, dictionary);
+	}
+
+	/**
+	 * @param slabSize
+	 *            bytes per slab, a power of two. Also the max size of a
+	 *            serialized tile.
+	 */
+	public OffHeapTileStore(long maxSize, int slabSize, TagDictionary dictionary) {
+		if (Integer.bitCount(slabSize) != 1 || slabSize < 1 << MIN_CHUNK_SHIFT)
+			throw new IllegalArgumentException("invalid slab size " + slabSize);
+
+		mSlabSize = slabSize;
+		mDictionary = dictionary;
+		mMaxSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSize / slabSize));
+		mNumClasses = Integer.numberOfTrailingZeros(slabSize) - MIN_CHUNK_SHIFT + 1;
+
+		mClassSlabs = new ArrayList<List<Slab>>(mNumClasses);
+		mLru = new ArrayList<LinkedHashMap<Long, Entry>>(mNumClasses);
+		for (int i = 0; i < mNumClasses; i++) {
+			mClassSlabs.add(new ArrayList<Slab>());
+			mLru.add(new LinkedHashMap<Long, Entry>(16, 0.75f, true));
+		}
+	}
+
+	/**
+	 * Store a copy of tile, replaces a previous version. The previous
+	 * version is also removed when tile cannot be stored.
+	 *
+	 * @return false when the tile is larger than a slab or all memory is
+	 *         held by acquired tiles
+	 */
+	public synchronized boolean put(CompactTile tile) {
+		Long key = key(tile.tile);
+		Entry old = mEntries.get(key);
+		if (old != null)
+			remove(old);
+
+		int[] refs = new int[tile.tags.length];
+		byte[][] strings = encodeTags(tile.tags, refs);
+		int size = OffHeapTile.serializedSize(tile, strings);
+		if (size > mSlabSize)
+			return false;
+
+		int sizeClass = sizeClass(size);
+		Entry e = allocate(key, tile.tile, sizeClass);
+		if (e == null)
+			return false;
+
+		ByteBuffer buf = e.slab.buffer.duplicate();
+		buf.position(e.chunk * e.slab.chunkSize);
+		OffHeapTile.write(buf, tile, strings, refs);
+
+		mEntries.put(key, e);
+		mLru.get(sizeClass).put(key, e);
+		return true;
+	}
+
+	public synchronized boolean contains(Tile tile) {
+		return mEntries.containsKey(key(tile));
+	}
+
+	/**
+	 * @return a view on the stored tile or null. Must be passed to release()
+	 *         when done.
+	 */
+	public synchronized OffHeapTile acquire(Tile tile) {
+		Long key = key(tile);
+		Entry e = mEntries.get(key);
+		if (e == null)
+			return null;
+
+		// update LRU order
+		mLru.get(e.slab.sizeClass).get(key);
+
+		e.pins++;
+		return new OffHeapTile(tile, e.slab.buffer, e.chunk * e.slab.chunkSize, e, mDictionary);
+	}
+
+	public synchronized void release(OffHeapTile view) {
+		Entry e = view.entry;
+		if (--e.pins == 0 && e.removed)
+			freeChunk(e);
+	}
+
+	/**
+	 * @return a heap copy of the stored tile or null
+	 */
+	public CompactTile get(Tile tile) {
+		OffHeapTile view = acquire(tile);
+		if (view == null)
+			return null;
+		try {
+			return view.toCompactTile();
+		} finally {
+			release(view);
+		}
+	}
+
+	/**
+	 * Drop all tiles and slabs. Acquired views stay readable.
+	 */
+	public synchronized void clear() {
+		mEntries.clear();
+		mSlabs.clear();
+		for (int i = 0; i < mNumClasses; i++) {
+			mClassSlabs.get(i).clear();
+			mLru.get(i).clear();
+		}
+	}
+
+	public synchronized int getNumTiles() {
+		return mEntries.size();
+	}
+
+	/**
+	 * @return bytes of allocated slabs
+	 */
+	public synchronized long size() {
+		return (long) mSlabs.size() * mSlabSize;
+	}
+
+	private int sizeClass(int size) {
+		int c = 0;
+		while ((1 << (MIN_CHUNK_SHIFT + c)) < size)
+			c++;
+		return c;
+	}
+
+	private Entry allocate(Long key, Tile tile, int sizeClass) {
+		List<Slab> slabs = mClassSlabs.get(sizeClass);
+
+		Slab slab = null;
+		for (int i = 0, n = slabs.size(); i < n && slab == null; i++)
+			if (slabs.get(i).numFree > 0)
+				slab = slabs.get(i);
+
+		if (slab == null && mSlabs.size() < mMaxSlabs) {
+			slab = new Slab(mSlabSize);
+			slab.init(sizeClass);
+			mSlabs.add(slab);
+			slabs.add(slab);
+		}
+
+		if (slab == null) {
+			Entry victim = evictable(mLru.get(sizeClass));
+			if (victim != null) {
+				remove(victim);
+				slab = victim.slab;
+			}
+		}
+
+		if (slab == null) {
+			slab = reassign(sizeClass);
+			if (slab == null)
+				return null;
+		}
+
+		int chunk = slab.free[--slab.numFree];
+		Entry e = new Entry(key, tile, slab, chunk);
+		slab.chunks[chunk] = e;
+		return e;
+	}
+
+	/**
+	 * Empty a slab of the class with most slabs and move it to sizeClass.
+	 */
+	private Slab reassign(int sizeClass) {
+		Slab victim = null;
+		int max = 0;
+
+		for (int c = 0; c < mNumClasses; c++) {
+			List<Slab> slabs = mClassSlabs.get(c);
+			if (c == sizeClass || slabs.size() <= max)
+				continue;
+
+			for (Slab s : slabs) {
+				if (!isPinned(s)) {
+					victim = s;
+					max = slabs.size();
+					break;
+				}
+			}
+		}
+
+		if (victim == null)
+			return null;
+
+		for (Entry e : victim.chunks)
+			if (e != null)
+				remove(e);
+
+		mClassSlabs.get(victim.sizeClass).remove(victim);
+		victim.init(sizeClass);
+		mClassSlabs.get(sizeClass).add(victim);
+
+		return victim;
+	}
+
+	private static boolean isPinned(Slab slab) {
+		for (Entry e : slab.chunks)
+			if (e != null && e.pins > 0)
+				return true;
+		return false;
+	}
+
+	private static Entry evictable(LinkedHashMap<Long, Entry> lru) {
+		Iterator<Entry> it = lru.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (e.pins == 0)
+				return e;
+		}
+		return null;
+	}
+
+	private void remove(Entry e) {
+		mEntries.remove(e.key);
+		mLru.get(e.slab.sizeClass).remove(e.key);
+
+		if (e.pins > 0)
+			e.removed = true;
+		else
+			freeChunk(e);
+	}
+
+	private static void freeChunk(Entry e) {
+		Slab slab = e.slab;
+		// the slab may have been dropped by clear()
+		if (slab.chunks[e.chunk] != e)
+			return;
+
+		slab.chunks[e.chunk] = null;
+		slab.free[slab.numFree++] = e.chunk;
+	}
+
+	/**
+	 * @param refs
+	 *            receives OffHeapTile.ref() of tags in the dictionary, 0
+	 *            for the others
+	 * @return UTF-8 key and value of each tag, null for dictionary tags
+	 */
+	private byte[][] encodeTags(Tag[] tags, int[] refs) {
+		byte[][] strings = new byte[tags.length * 2][];
+		for (int i = 0; i < tags.length; i++) {
+			int k = mDictionary.getKeyIndex(tags[i].key);
+			int v = k < 0 ? -1 : mDictionary.getValueIndex(tags[i].value);
+			if (v >= 0) {
+				refs[i] = OffHeapTile.ref(k, v);
+				continue;
+			}
+			strings[i * 2] = tags[i].key.getBytes(UTF8);
+			strings[i * 2 + 1] = tags[i].value.getBytes(UTF8);
+		}
+		return strings;
+	}
+
+	private static Long key(Tile tile) {
+		return Long.valueOf(VtmPackMapDatabase.key(tile.zoomLevel, tile.tileX, tile.tileY));
+	}
+}
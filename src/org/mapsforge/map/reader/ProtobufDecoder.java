@@ -16,6 +16,8 @@ package org.mapsforge.map.reader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.logging.Logger;
 
 public class ProtobufDecoder {
@@ -27,6 +29,10 @@ public class ProtobufDecoder {
 	private final static int BUFFER_SIZE = 1 << 15; // 32kb
 	byte[] buffer = new byte[BUFFER_SIZE];
 
+	// buffer used for reading from InputStream, 'buffer' points to
+	// the message data when decoding from memory
+	private byte[] mReadBuffer = buffer;
+
 	// position in buffer
 	int bufferPos;
 
@@ -46,69 +52,183 @@ public class ProtobufDecoder {
 
 	private final UTF8Decoder mStringDecoder;
 
+	// view on buffer for decodeVarint32() and decodePacked()
+	private ByteBuffer mLongView;
+	private byte[] mLongViewArray;
+
+	/** values of the last decodePacked() call */
+	int[] packedValues = new int[256];
+
 	public ProtobufDecoder(){
 		mStringDecoder = new UTF8Decoder();
 	}
 
 	public void setInputStream(InputStream is, int contentLength){
 		mInputStream = is;
+		buffer = mReadBuffer;
 		bufferFill = 0;
 		bufferPos = 0;
+		mBufferOffset = 0;
 		mReadPos = 0;
 		mReadMax = contentLength;
 	}
 
+	/**
+	 * Decode the message in data[offset .. offset + length] in place.
+	 * The whole message is available, so readBuffer() never needs to copy
+	 * or refill.
+	 */
+	public void setInput(byte[] data, int offset, int length){
+		mInputStream = null;
+		buffer = data;
+		bufferPos = offset;
+		bufferFill = offset + length;
+		// position() is relative to offset
+		mBufferOffset = -offset;
+		// mark input as read completely
+		mReadPos = length;
+		mReadMax = length;
+	}
+
+	/**
+	 * Decode the message from position to limit of data. Heap buffers are
+	 * decoded in place. Direct and mapped buffers are copied once into the
+	 * read buffer, as all decoding works on byte arrays.
+	 */
+	public void setInput(ByteBuffer data){
+		int length = data.remaining();
+
+		if (data.hasArray()) {
+			setInput(data.array(), data.arrayOffset() + data.position(), length);
+			return;
+		}
+
+		if (mReadBuffer.length < length) {
+			LOG.info( "increase read buffer to " + length + " bytes");
+			mReadBuffer = new byte[length];
+		}
+
+		data.duplicate().get(mReadBuffer, 0, length);
+		setInput(mReadBuffer, 0, length);
+	}
+
+	/**
+	 * Skip a length delimited field.
+	 */
 	public void skip()throws IOException{
-		int bytes = decodeVarint32();
-		bufferPos += bytes;
+		skipBytes(decodeVarint32());
+	}
+
+	/**
+	 * Skip the next bytes of the message without decoding them. Bytes not
+	 * yet in the buffer are read and dropped.
+	 */
+	public void skipBytes(int bytes) throws IOException {
+		if (bytes < 0)
+			throw new IOException("invalid length " + bytes);
+
+		int available = bufferFill - bufferPos;
+		if (bytes <= available) {
+			bufferPos += bytes;
+			return;
+		}
+
+		int remain = bytes - available;
+		if (mInputStream == null || remain > mReadMax - mReadPos)
+			throw new IOException("skip beyond end of message");
+
+		mBufferOffset += bufferFill + remain;
+		bufferPos = 0;
+		bufferFill = 0;
+
+		while (remain > 0) {
+			int len = mInputStream.read(buffer, 0, Math.min(remain, buffer.length));
+			if (len < 0)
+				throw new IOException("unexpected end of message");
+
+			mReadPos += len;
+			remain -= len;
+		}
 	}
 
 	public void decodeVarintArray(int num, short[] array) throws IOException {
+		int cnt = decodePacked(false);
+		if (cnt > num)
+			throw new IOException("invalid array size " + num);
+
+		int[] values = packedValues;
+		for (int i = 0; i < cnt; i++)
+			array[i] = (short) values[i];
+	}
+
+	/**
+	 * Decode a packed varint field into packedValues.
+	 *
+	 * @param zigzagDelta
+	 *            the field holds interleaved zigzag encoded x,y deltas,
+	 *            store the absolute x,y values
+	 * @return number of values
+	 */
+	protected int decodePacked(boolean zigzagDelta) throws IOException {
 		int bytes = decodeVarint32();
 
 		readBuffer(bytes);
+		checkAvailable(bytes);
+
+		// each value takes at least one byte
+		if (packedValues.length < bytes)
+			packedValues = new int[bytes];
 
+		int[] values = packedValues;
 		int cnt = 0;
 
 		byte[] buf = buffer;
 		int pos = bufferPos;
 		int end = pos + bytes;
+		// last position to read 8 bytes at once
+		int wordEnd = buf.length - 8;
+		ByteBuffer words = longView();
 		int val;
 
 		while (pos < end) {
-			if (cnt == num)
-				throw new IOException("invalid array size " + num);
-
 			if (buf[pos] >= 0) {
 				val = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				val = (buf[pos++] & 0x7f)
-						| buf[pos++] << 7;
-			} else if (buf[pos + 2] >= 0) {
-				val = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++]) << 14;
-			} else if (buf[pos + 3] >= 0) {
-				val = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++] & 0x7f) << 14
-						| (buf[pos++]) << 21;
-			} else  if (buf[pos + 4] >= 0){
-				val = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++] & 0x7f) << 14
-						| (buf[pos++] & 0x7f) << 21
-						| (buf[pos++]) << 28;
-			} else
-				throw new IOException("malformed VarInt32");
+			} else if (pos + 1 < end && buf[pos + 1] >= 0) {
+				val = (buf[pos] & 0x7f) | buf[pos + 1] << 7;
+				pos += 2;
+			} else if (pos <= wordEnd) {
+				long word = words.getLong(pos);
+				int len = varintLength(word);
+				if (len > VARINT_LIMIT || pos + len > end)
+					throw new IOException("malformed VarInt32");
 
-			array[cnt++] = (short) val;
-		}
+				val = varintValue(word, len);
+				pos += len;
+			} else {
+				int shift = 0;
+				val = 0;
+				byte b;
+				do {
+					if (pos == end || shift > 28)
+						throw new IOException("malformed VarInt32");
+					b = buf[pos++];
+					val |= (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+			}
 
-		if (pos != bufferPos + bytes)
-			throw new IOException("invalid array " + num);
+			if (zigzagDelta) {
+				// add to the previous value of the same axis
+				val = ((val >>> 1) ^ -(val & 1));
+				if (cnt > 1)
+					val += values[cnt - 2];
+			}
+			values[cnt++] = val;
+		}
 
 		bufferPos = pos;
+
+		return cnt;
 	}
 
 	protected int decodeVarint32() throws IOException {
@@ -117,52 +237,93 @@ public class ProtobufDecoder {
 
 		byte[] buf = buffer;
 		int pos = bufferPos;
-		int val;
-
-		if (buf[pos] >= 0) {
-			val = buf[pos++];
-		} else {
+		int end = bufferFill;
 
-			if (buf[pos + 1] >= 0) {
-				val = (buf[pos++] & 0x7f)
-						| (buf[pos++]) << 7;
-
-			} else if (buf[pos + 2] >= 0) {
-				val = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++]) << 14;
+		if (pos < end && buf[pos] >= 0) {
+			bufferPos = pos + 1;
+			return buf[pos];
+		}
 
-			} else if (buf[pos + 3] >= 0) {
-				val = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++] & 0x7f) << 14
-						| (buf[pos++]) << 21;
-			} else {
-				val = (buf[pos++] & 0x7f)
-						| (buf[pos++] & 0x7f) << 7
-						| (buf[pos++] & 0x7f) << 14
-						| (buf[pos++] & 0x7f) << 21
-						| (buf[pos]) << 28;
-
-				// 'Discard upper 32 bits'
-				int max = pos + VARINT_LIMIT;
-				while (pos < max)
-					if (buf[pos++] >= 0)
-						break;
-
-				if (pos == max)
-					throw new IOException("malformed VarInt32");
+		if (pos + 8 <= end) {
+			long word = longView().getLong(pos);
+			int len = varintLength(word);
+			if (len <= VARINT_LIMIT) {
+				bufferPos = pos + len;
+				return varintValue(word, len);
 			}
 		}
 
+		// near the end of input or longer than VARINT_LIMIT: the bits
+		// above 32 are discarded
+		int val = 0;
+		byte b;
+		int i = 0;
+		do {
+			if (pos == end)
+				throw new IOException("truncated");
+			if (i == VARINT_MAX)
+				throw new IOException("malformed VarInt32");
+
+			b = buf[pos++];
+			if (i < VARINT_LIMIT)
+				val |= (b & 0x7f) << (i * 7);
+			i++;
+		} while (b < 0);
+
 		bufferPos = pos;
 
 		return val;
 	}
 
+	/**
+	 * @throws IOException
+	 *             when the next 'bytes' bytes are not in the buffer
+	 */
+	private void checkAvailable(int bytes) throws IOException {
+		if (bytes < 0 || bytes > bufferFill - bufferPos)
+			throw new IOException("truncated");
+	}
+
+	/**
+	 * @return number of bytes of the varint in the low bytes of word, 8 when
+	 *         it does not end within word
+	 */
+	private static int varintLength(long word) {
+		// the last byte has no continuation bit
+		long stop = ~word & 0x8080808080808080L;
+		return (Long.numberOfTrailingZeros(stop) + 1) >> 3;
+	}
+
+	/**
+	 * @return the 32 bit value of the varint of 'len' <= 5 bytes in the low
+	 *         bytes of word
+	 */
+	private static int varintValue(long word, int len) {
+		long m = word & (-1L >>> (64 - (len << 3)));
+
+		// gather the 7 bit groups
+		return (int) ((m & 0x7fL)
+		        | (m >>> 1 & 0x3f80L)
+		        | (m >>> 2 & 0x1fc000L)
+		        | (m >>> 3 & 0xfe00000L)
+		        | (m >>> 4 & 0xf0000000L));
+	}
+
+	/**
+	 * @return little endian view on buffer to read 8 bytes at once
+	 */
+	private ByteBuffer longView() {
+		if (mLongViewArray != buffer) {
+			mLongView = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+			mLongViewArray = buffer;
+		}
+		return mLongView;
+	}
+
 	public String decodeString() throws IOException {
 		final int size = decodeVarint32();
 		readBuffer(size);
+		checkAvailable(size);
 
 		String result;
 
@@ -212,6 +373,7 @@ public class ProtobufDecoder {
 			mBufferOffset += bufferPos;
 			bufferPos = 0;
 			buffer = tmp;
+			mReadBuffer = tmp;
 		}
 
 		if (bufferFill == bufferPos) {
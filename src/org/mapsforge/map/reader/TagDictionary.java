@@ -0,0 +1,350 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import org.mapsforge.core.model.Tag;
+
+/**
+ * Shared key and value tables of a tile server. Tiles refer to dictionary
+ * entries by index and only carry other keys and values as strings, at
+ * indices starting from getOffset().
+ *
+ * The text format, read by read(), is UTF-8 with one entry per line:
+ *
+ * <pre>
+ * # comment
+ * version 2
+ * offset 1024
+ * key highway
+ * value residential
+ * </pre>
+ *
+ * Keys and values are numbered in order of appearance.
+ */
+public class TagDictionary {
+
+	/** the static keys and values of Tags */
+	public final static TagDictionary DEFAULT =
+	        new TagDictionary(0, Tags.ATTRIB_OFFSET, Tags.keys, Tags.values);
+
+	// tag indices are decoded as shorts
+	private final static int MAX_OFFSET = Short.MAX_VALUE;
+
+	private final int mVersion;
+	private final int mOffset;
+	private final String[] mKeys;
+	private final String[] mValues;
+
+	private final PerfectHash mKeyIndex;
+	private final PerfectHash mValueIndex;
+
+	// Tag instances for key/value pairs, rows are created on demand. A pair
+	// created twice by racing threads shares the same key and value Strings.
+	private final Tag[][] mTags;
+
+	/**
+	 * @param offset
+	 *            first index of keys and values sent with the tile
+	 * @param keys
+	 *            interned keys, see TagSet.get()
+	 */
+	TagDictionary(int version, int offset, String[] keys, String[] values) {
+		mVersion = version;
+		mOffset = offset;
+		mKeys = keys;
+		mValues = values;
+		mKeyIndex = new PerfectHash(keys);
+		mValueIndex = new PerfectHash(values);
+		mTags = new Tag[keys.length][];
+	}
+
+	/**
+	 * @return version of the dictionary, 0 for DEFAULT. Tiles can only be
+	 *         decoded with the dictionary they were encoded with.
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * @return first index of keys and values sent with the tile
+	 */
+	public int getOffset() {
+		return mOffset;
+	}
+
+	/**
+	 * @return interned key or null when index is out of range
+	 */
+	public String getKey(int index) {
+		if (index < 0 || index >= mKeys.length)
+			return null;
+		return mKeys[index];
+	}
+
+	/**
+	 * @return value or null when index is out of range
+	 */
+	public String getValue(int index) {
+		if (index < 0 || index >= mValues.length)
+			return null;
+		return mValues[index];
+	}
+
+	/**
+	 * @return index of key or -1
+	 */
+	public int getKeyIndex(String key) {
+		return mKeyIndex.indexOf(key);
+	}
+
+	/**
+	 * @return index of value or -1
+	 */
+	public int getValueIndex(String value) {
+		return mValueIndex.indexOf(value);
+	}
+
+	/**
+	 * @return the shared Tag for key and value index, null when the index is
+	 *         out of range
+	 */
+	public Tag getTag(int key, int value) {
+		if (key < 0 || key >= mKeys.length || value < 0 || value >= mValues.length)
+			return null;
+
+		Tag[] row = mTags[key];
+		if (row == null)
+			mTags[key] = row = new Tag[mValues.length];
+
+		Tag tag = row[value];
+		if (tag == null)
+			row[value] = tag = new Tag(mKeys[key], mValues[value]);
+
+		return tag;
+	}
+
+	/**
+	 * Read a dictionary from a file or an http(s) url.
+	 */
+	public static TagDictionary load(String location) throws IOException {
+		InputStream is;
+		if (location.startsWith("http://") || location.startsWith("https://"))
+			is = new URL(location).openStream();
+		else
+			is = new FileInputStream(new File(location));
+
+		try {
+			return read(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Read a dictionary in the text format described above.
+	 */
+	public static TagDictionary read(InputStream is) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+
+		int version = -1;
+		int offset = -1;
+		List<String> keys = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+
+		String line;
+		int lineNr = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNr++;
+
+			if (line.length() == 0 || line.charAt(0) == '#')
+				continue;
+
+			int split = line.indexOf(' ');
+			if (split < 0)
+				throw new IOException("invalid dictionary line " + lineNr);
+
+			String type = line.substring(0, split);
+			String arg = line.substring(split + 1);
+
+			try {
+				if ("key".equals(type))
+					keys.add(arg.intern());
+				else if ("value".equals(type))
+					values.add(arg);
+				else if ("version".equals(type))
+					version = Integer.parseInt(arg);
+				else if ("offset".equals(type))
+					offset = Integer.parseInt(arg);
+				else
+					throw new IOException("invalid dictionary line " + lineNr);
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid dictionary line " + lineNr);
+			}
+		}
+
+		if (version <= 0)
+			throw new IOException("dictionary version missing");
+
+		if (offset < keys.size() || offset < values.size() || offset > MAX_OFFSET)
+			throw new IOException("invalid dictionary offset " + offset);
+
+		if (new HashSet<String>(keys).size() != keys.size()
+		        || new HashSet<String>(values).size() != values.size())
+			throw new IOException("duplicate dictionary entries");
+
+		return new TagDictionary(version, offset,
+		                         keys.toArray(new String[keys.size()]),
+		                         values.toArray(new String[values.size()]));
+	}
+
+	/**
+	 * Minimal perfect hash of distinct strings to their array index, built
+	 * with 'hash and displace': strings are grouped in buckets, each bucket
+	 * gets a seed that maps its strings to free slots.
+	 */
+	static final class PerfectHash {
+		private final String[] mStrings;
+		// seed per bucket
+		private final int[] mSeeds;
+		// string index per slot
+		private final int[] mSlots;
+
+		PerfectHash(String[] strings) {
+			mStrings = strings;
+
+			int n = strings.length;
+			int numBuckets = Math.max(1, (n + 1) / 2);
+			mSeeds = new int[numBuckets];
+			mSlots = new int[n];
+
+			if (n == 0)
+				return;
+
+			final long[] hashes = new long[n];
+			final int[] bucketSize = new int[numBuckets];
+			for (int i = 0; i < n; i++) {
+				hashes[i] = hash(strings[i]);
+				bucketSize[bucket(hashes[i], numBuckets)]++;
+			}
+
+			// strings sorted by bucket, largest buckets first as they are the
+			// hardest to place
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++)
+				order[i] = Integer.valueOf(i);
+
+			final int buckets = numBuckets;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int ba = bucket(hashes[a.intValue()], buckets);
+					int bb = bucket(hashes[b.intValue()], buckets);
+					if (ba == bb)
+						return 0;
+					if (bucketSize[ba] != bucketSize[bb])
+						return bucketSize[bb] - bucketSize[ba];
+					return ba - bb;
+				}
+			});
+
+			boolean[] used = new boolean[n];
+			int[] slots = new int[n];
+
+			for (int start = 0; start < n;) {
+				int b = bucket(hashes[order[start].intValue()], numBuckets);
+				int size = bucketSize[b];
+
+				for (int seed = 1;; seed++) {
+					if (seed == Integer.MAX_VALUE)
+						throw new IllegalArgumentException("cannot build index");
+
+					int placed = 0;
+					for (; placed < size; placed++) {
+						int slot = slot(hashes[order[start + placed].intValue()], seed, n);
+						if (used[slot])
+							break;
+						used[slot] = true;
+						slots[placed] = slot;
+					}
+
+					if (placed == size) {
+						mSeeds[b] = seed;
+						for (int i = 0; i < size; i++)
+							mSlots[slots[i]] = order[start + i].intValue();
+						break;
+					}
+
+					// undo and try next seed
+					for (int i = 0; i < placed; i++)
+						used[slots[i]] = false;
+				}
+				start += size;
+			}
+		}
+
+		int indexOf(String s) {
+			int n = mSlots.length;
+			if (n == 0 || s == null)
+				return -1;
+
+			long h = hash(s);
+			int index = mSlots[slot(h, mSeeds[bucket(h, mSeeds.length)], n)];
+
+			return mStrings[index].equals(s) ? index : -1;
+		}
+
+		private static int bucket(long hash, int numBuckets) {
+			return (int) ((hash >>> 32) % numBuckets);
+		}
+
+		private static int slot(long hash, int seed, int n) {
+			long h = mix(hash + seed * 0x9e3779b97f4a7c15L);
+			return (int) ((h >>> 1) % n);
+		}
+
+		/** 64 bit FNV-1a over the chars of s */
+		private static long hash(String s) {
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0, len = s.length(); i < len; i++) {
+				h ^= s.charAt(i);
+				h *= 0x100000001b3L;
+			}
+			return mix(h);
+		}
+
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
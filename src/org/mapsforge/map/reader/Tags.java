@@ -15,7 +15,7 @@
 package org.mapsforge.map.reader;
 
 public class Tags {
-	// TODO this should be retrieved from tile 0/0/0
+	// default dictionary, see TagDictionary to load the tables of a server
 
 	public final static int ATTRIB_OFFSET = 256;
 
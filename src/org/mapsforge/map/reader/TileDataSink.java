@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+/**
+ * Receives tile elements from TileDecoder as soon as they are decoded.
+ */
+public interface TileDataSink {
+
+	/**
+	 * @param element
+	 *            the decoded element. It is reused by the decoder, i.e. only
+	 *            valid until process() returns.
+	 */
+	void process(MapElement element);
+
+	/**
+	 * Called once after the last element.
+	 *
+	 * @param success
+	 *            false when the tile could not be decoded completely
+	 */
+	void completed(boolean success);
+}
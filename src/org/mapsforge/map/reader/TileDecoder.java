@@ -16,14 +16,18 @@ package org.mapsforge.map.reader;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
-import org.mapsforge.core.model.LatLong;
 import org.mapsforge.core.model.Tag;
 import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.GeometryBuffer.GeometryType;
 
 public class TileDecoder extends ProtobufDecoder {
 	private static final Logger LOG = Logger.getLogger(TileDecoder.class.getName());
@@ -55,37 +59,318 @@ public class TileDecoder extends ProtobufDecoder {
 	private static final int TAG_ELEM_LAYER = 21;
 
 	private short[] mTmpShortArray = new short[100];
-	private final Tag[][] mElementTags;
 
 	private final TagSet curTags = new TagSet(100);
 	// private IMapDatabaseCallback mMapGenerator;
 	// scale coordinates to tile size
 	private final static float REF_TILE_SIZE = 4096.0f;
-	private final double mScale = REF_TILE_SIZE;
+	private final float mInvScale = 1 / REF_TILE_SIZE;
 
-	private MapReadResultBuilder mMapReadResultBuilder;
-	private List<Way> mWays;
-	private List<PointOfInterest> mPois;
+	// reusable current element
+	private final MapElement mElem = new MapElement(1024, 16);
 
-	TileDecoder() {
-		// reusable tag set
-		Tag[][] tags = new Tag[10][];
-		for (int i = 0; i < 10; i++)
-			tags[i] = new Tag[i + 1];
-		mElementTags = tags;
+	private TileDataSink mSink;
 
+	private ElementFilter mFilter;
+
+	private TagDictionary mDictionary = TagDictionary.DEFAULT;
+
+	// number of elements decoded in the last tile
+	int numLines;
+	int numPolygons;
+	int numPoints;
+	private final MapReadResultSink mResultSink = new MapReadResultSink();
+	private CompactTileSink mCompactSink;
+
+	// parallel decoding, see setParallel()
+	private ExecutorService mExecutor;
+	private int mParallelism;
+	private int mParallelThreshold;
+	private TileDecoder[] mWorkers;
+
+	// element types and start positions collected by decodeTile() when
+	// mScan is set
+	private boolean mScan;
+	private int mNumElements;
+	private int[] mElementType = new int[64];
+	private int[] mElementStart = new int[64];
+
+	public TileDecoder() {
+	}
+
+	/**
+	 * @param fixed
+	 *            pass elements to TileDataSinks with coordinates in tile
+	 *            units in GeometryBuffer.fixedPoints, without conversion to
+	 *            float. Elements with coordinates outside of the short range
+	 *            fail the tile.
+	 */
+	public void setFixedPoint(boolean fixed) {
+		mElem.fixed = fixed;
+		if (fixed)
+			mElem.ensureFixedPointSize(1, false);
 	}
 
 	MapReadResult decode(InputStream is, int contentLength, Tile tile)
 	        throws IOException {
-		mMapReadResultBuilder = new MapReadResultBuilder();
-		mWays = new ArrayList<Way>();
-		mPois = new ArrayList<PointOfInterest>();
+		setInputStream(is, contentLength);
+		return decodeResult(tile);
+	}
 
-		System.out.println(tile + " bytes:" + contentLength);
+	/**
+	 * @param dictionary
+	 *            resolves key and value indices below its offset, must be
+	 *            the dictionary the tiles were encoded with
+	 */
+	public void setDictionary(TagDictionary dictionary) {
+		mDictionary = dictionary;
+	}
 
-		setInputStream(is, contentLength);
+	/**
+	 * @param filter
+	 *            decode only elements accepted by the filter, null to decode
+	 *            all elements
+	 */
+	public void setFilter(ElementFilter filter) {
+		mFilter = filter;
+		mWorkers = null;
+	}
+
+	/**
+	 * Decode tile from data[offset .. offset + length] into a CompactTile.
+	 * Coordinates are kept in tile units, a tile with coordinates outside
+	 * of the short range fails with an IOException.
+	 *
+	 * @return the tile or null when it could not be decoded
+	 */
+	public CompactTile decodeCompact(byte[] data, int offset, int length, Tile tile)
+	        throws IOException {
+		if (mCompactSink == null)
+			mCompactSink = new CompactTileSink();
+
+		boolean fixed = mElem.fixed;
+		setFixedPoint(true);
+		try {
+			setInput(data, offset, length);
+			mCompactSink.reset(tile);
+			decode(tile, mCompactSink);
+			return mCompactSink.getResult();
+		} finally {
+			setFixedPoint(fixed);
+		}
+	}
+
+	/**
+	 * Decode the elements of tiles with at least 'threshold' bytes in
+	 * parallel when decoding a MapReadResult from a byte array. The elements
+	 * are split into 'parallelism' ranges of about equal size, one range is
+	 * decoded on the calling thread.
+	 *
+	 * @param executor
+	 *            runs the other ranges. Must not be used by the threads that
+	 *            call decode(), they would wait for each other. null to
+	 *            disable.
+	 */
+	public void setParallel(ExecutorService executor, int parallelism, int threshold) {
+		mExecutor = executor;
+		mParallelism = parallelism;
+		mParallelThreshold = threshold;
+		mWorkers = null;
+	}
+
+	/**
+	 * Decode tile from data[offset .. offset + length] without copying.
+	 */
+	MapReadResult decode(byte[] data, int offset, int length, Tile tile)
+	        throws IOException {
+		if (mExecutor != null && mParallelism > 1 && length >= mParallelThreshold)
+			return decodeParallel(data, offset, length, tile);
+
+		setInput(data, offset, length);
+		return decodeResult(tile);
+	}
+
+	/**
+	 * Read the tile tags and element positions, then decode ranges of
+	 * elements concurrently and merge the results in order.
+	 */
+	private MapReadResult decodeParallel(final byte[] data, final int offset,
+	        final int length, final Tile tile) throws IOException {
+
+		setInput(data, offset, length);
 		mTile = tile;
+		mNumElements = 0;
+
+		mScan = true;
+		try {
+			if (!decodeTile())
+				return null;
+		} finally {
+			mScan = false;
+		}
+
+		final int numElements = mNumElements;
+		if (numElements < 2) {
+			// nothing to split
+			setInput(data, offset, length);
+			return decodeResult(tile);
+		}
+		int parallelism = Math.min(mParallelism, numElements);
+
+		if (mWorkers == null || mWorkers.length < parallelism) {
+			mWorkers = new TileDecoder[mParallelism];
+			for (int i = 1; i < mParallelism; i++)
+				mWorkers[i] = new TileDecoder();
+		}
+
+		// split at element boundaries into ranges of about equal size
+		final int[] bounds = new int[parallelism + 1];
+		int first = mElementStart[0];
+		long span = length - first;
+		for (int i = 1, e = 0; i < parallelism; i++) {
+			int limit = first + (int) (span * i / parallelism);
+			while (e < numElements && mElementStart[e] < limit)
+				e++;
+			bounds[i] = e;
+		}
+		bounds[parallelism] = numElements;
+
+		Future<?>[] futures = new Future<?>[parallelism];
+		for (int i = 1; i < parallelism; i++) {
+			final TileDecoder worker = mWorkers[i];
+			final int from = bounds[i];
+			final int to = bounds[i + 1];
+
+			futures[i] = mExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					worker.decodeElements(data, offset, length, tile, TileDecoder.this,
+					        from, to);
+					return null;
+				}
+			});
+		}
+
+		// failures are reported as IOException, like those of decode(), and
+		// only after all workers are done
+		IOException error = null;
+		try {
+			decodeElements(data, offset, length, tile, this, bounds[0], bounds[1]);
+		} catch (IOException e) {
+			error = e;
+		} catch (RuntimeException e) {
+			error = new IOException(e);
+		}
+
+		// wait for all ranges, the workers are reused
+		for (int i = 1; i < parallelism; i++) {
+			try {
+				futures[i].get();
+			} catch (InterruptedException e) {
+				// worker may still be running
+				mWorkers = null;
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					error = (IOException) cause;
+				else
+					error = new IOException(cause);
+			}
+		}
+
+		if (error != null)
+			throw error;
+
+		for (int i = 1; i < parallelism; i++) {
+			TileDecoder worker = mWorkers[i];
+			mResultSink.addAll(worker.mResultSink);
+			numLines += worker.numLines;
+			numPolygons += worker.numPolygons;
+			numPoints += worker.numPoints;
+		}
+		mResultSink.completed(true);
+
+		return mResultSink.getResult();
+	}
+
+	/**
+	 * Decode elements from .. to - 1 found by 'owner' into mResultSink.
+	 */
+	private void decodeElements(byte[] data, int offset, int length, Tile tile,
+	        TileDecoder owner, int from, int to) throws IOException {
+
+		mTile = tile;
+		mSink = mResultSink;
+		mResultSink.reset();
+		numLines = 0;
+		numPolygons = 0;
+		numPoints = 0;
+
+		if (owner != this) {
+			// share the tile tags, only read while decoding
+			curTags.tags = owner.curTags.tags;
+			curTags.numTags = owner.curTags.numTags;
+
+			if (mElem.fixed != owner.mElem.fixed)
+				setFixedPoint(owner.mElem.fixed);
+
+			mFilter = owner.mFilter;
+			mDictionary = owner.mDictionary;
+		}
+
+		try {
+			for (int e = from; e < to; e++) {
+				int start = owner.mElementStart[e];
+				setInput(data, offset + start, length - start);
+				decodeTileElement(owner.mElementType[e]);
+			}
+		} finally {
+			mSink = null;
+		}
+	}
+
+	/**
+	 * Decode tile from position to limit of data.
+	 */
+	MapReadResult decode(ByteBuffer data, Tile tile)
+	        throws IOException {
+		setInput(data);
+		return decodeResult(tile);
+	}
+
+	private MapReadResult decodeResult(Tile tile) throws IOException {
+		mResultSink.reset();
+		decode(tile, mResultSink);
+		return mResultSink.getResult();
+	}
+
+	/**
+	 * Decode tile from the input set by setInputStream() or setInput() and
+	 * pass each element to sink as soon as it is decoded.
+	 *
+	 * @return true when the tile was decoded completely
+	 */
+	public boolean decode(Tile tile, TileDataSink sink) throws IOException {
+		mSink = sink;
+		mTile = tile;
+
+		numLines = 0;
+		numPolygons = 0;
+		numPoints = 0;
+
+		boolean success = false;
+		try {
+			success = decodeTile();
+		} finally {
+			mSink = null;
+			sink.completed(success);
+		}
+		return success;
+	}
+
+	private boolean decodeTile() throws IOException {
 
 		curTags.clear(true);
 		int version = -1;
@@ -109,21 +394,25 @@ public class TileDecoder extends ProtobufDecoder {
 			case TAG_TILE_LINE:
 			case TAG_TILE_POLY:
 			case TAG_TILE_POINT:
-				decodeTileElement(tag);
+				if (mScan)
+					addElement(tag);
+				else
+					decodeTileElement(tag);
 				break;
 
 			case TAG_TILE_TAG_KEYS:
 				if (keys == null || curKey >= numKeys) {
 					LOG.info(mTile + " wrong number of keys " + numKeys);
-					return null;
+					return false;
 				}
-				keys[curKey++] = decodeString();
+				// keys are compared by identity, see TagSet
+				keys[curKey++] = decodeString().intern();
 				break;
 
 			case TAG_TILE_TAG_VALUES:
 				if (values == null || curValue >= numValues) {
 					LOG.info(mTile + " wrong number of values " + numValues);
-					return null;
+					return false;
 				}
 				values[curValue++] = decodeString();
 				break;
@@ -150,7 +439,7 @@ public class TileDecoder extends ProtobufDecoder {
 				decodeVarintArray(len, mTmpShortArray);
 				if (!decodeTileTags(numTags, mTmpShortArray, keys, values)) {
 					LOG.info(mTile + " invalid tags");
-					return null;
+					return false;
 				}
 				break;
 
@@ -158,48 +447,72 @@ public class TileDecoder extends ProtobufDecoder {
 				version = decodeVarint32();
 				if (version != 4) {
 					LOG.info(mTile + " invalid version " + version);
-					return null;
+					return false;
 				}
 				break;
 
 			default:
 				LOG.info(mTile + " invalid type for tile: " + tag);
-				return null;
+				return false;
 			}
 		}
 
-		mMapReadResultBuilder
-		        .add(new PoiWayBundle(mPois, mWays));
+		return true;
+	}
 
-		return mMapReadResultBuilder.build();
+	/**
+	 * Remember type and position of the element and skip it.
+	 */
+	private void addElement(int type) throws IOException {
+		if (mNumElements == mElementStart.length) {
+			int size = mNumElements * 2;
+			mElementType = Arrays.copyOf(mElementType, size);
+			mElementStart = Arrays.copyOf(mElementStart, size);
+		}
+		mElementType[mNumElements] = type;
+		mElementStart[mNumElements++] = position();
+		skip();
 	}
 
 	private boolean decodeTileTags(int numTags, short[] tagIdx, String[] keys, String[] vals) {
+		TagDictionary dict = mDictionary;
+		int offset = dict.getOffset();
 		Tag tag;
 
 		for (int i = 0; i < numTags * 2; i += 2) {
 			int k = tagIdx[i];
 			int v = tagIdx[i + 1];
+
+			if (k < offset && v < offset) {
+				// shared instance for dictionary key and value
+				tag = dict.getTag(k, v);
+				if (tag == null)
+					return false;
+
+				curTags.add(tag);
+				continue;
+			}
+
 			String key, val;
 
-			if (k < Tags.ATTRIB_OFFSET) {
-				if (k > Tags.MAX_KEY)
+			if (k < offset) {
+				key = dict.getKey(k);
+				if (key == null)
 					return false;
-				key = Tags.keys[k];
 			} else {
-				k -= Tags.ATTRIB_OFFSET;
-				if (k >= keys.length)
+				k -= offset;
+				if (keys == null || k >= keys.length)
 					return false;
 				key = keys[k];
 			}
 
-			if (v < Tags.ATTRIB_OFFSET) {
-				if (v > Tags.MAX_VALUE)
+			if (v < offset) {
+				val = dict.getValue(v);
+				if (val == null)
 					return false;
-				val = Tags.values[v];
 			} else {
-				v -= Tags.ATTRIB_OFFSET;
-				if (v >= vals.length)
+				v -= offset;
+				if (vals == null || v >= vals.length)
 					return false;
 				val = vals[v];
 			}
@@ -230,7 +543,7 @@ public class TileDecoder extends ProtobufDecoder {
 	private boolean decodeTileElement(int type) throws IOException {
 
 		int bytes = decodeVarint32();
-		Tag[] tags = null;
+		boolean hasTags = false;
 		short[] index = null;
 
 		int end = position() + bytes;
@@ -243,10 +556,7 @@ public class TileDecoder extends ProtobufDecoder {
 		if (type == TAG_TILE_POINT)
 			coordCnt = 1;
 
-		int layer = 5;
-
-		List<LatLong[][]> geoms = null;
-		LatLong position = null;
+		MapElement elem = mElem.clear();
 
 		while (position() < end) {
 			// read tag and wire type
@@ -258,7 +568,21 @@ public class TileDecoder extends ProtobufDecoder {
 
 			switch (tag) {
 			case TAG_ELEM_TAGS:
-				tags = decodeElementTags(numTags);
+				hasTags = decodeElementTags(numTags);
+				if (!hasTags)
+					break;
+
+				if (mFilter != null
+				        && !mFilter.accept(geometryType(type), mTmpShortArray, numTags, curTags)) {
+					// skip index and coordinates
+					skipBytes(end - position());
+					return true;
+				}
+
+				TagSet tags = elem.tags;
+				tags.clear();
+				for (int i = 0; i < numTags; i++)
+					tags.add(curTags.tags[mTmpShortArray[i]]);
 				break;
 
 			case TAG_ELEM_NUM_INDICES:
@@ -282,21 +606,31 @@ public class TileDecoder extends ProtobufDecoder {
 				}
 
 				if (type == TAG_TILE_LINE || type == TAG_TILE_POLY) {
-					geoms = decodeInterleavedPoints(index, coordCnt, (type == TAG_TILE_POLY));
+					int cnt = decodeInterleavedPoints(elem, coordCnt);
+					if (index != null && cnt != coordCnt) {
+						LOG.info(mTile + " wrong number of coordinates "
+						         + cnt + "/" + coordCnt);
+						fail = true;
+					}
 				} else {
 					// int len =
 					decodeVarint32();
 					for (int i = 0; i < coordCnt; i += 1) {
 						int x = deZigZag(decodeVarint32());
 						int y = deZigZag(decodeVarint32());
-						position = new LatLong(y / mScale, x / mScale);
+						if (!elem.fixed)
+							elem.addPoint(x * mInvScale, y * mInvScale);
+						else if (x == (short) x && y == (short) y)
+							elem.addFixedPoint((short) x, (short) y);
+						else
+							throw new IOException("coordinate out of range");
 					}
 				}
 
 				break;
 
 			case TAG_ELEM_LAYER:
-				layer = decodeVarint32();
+				elem.layer = decodeVarint32();
 				break;
 
 			default:
@@ -304,196 +638,109 @@ public class TileDecoder extends ProtobufDecoder {
 			}
 		}
 
-		if (fail || tags == null || numIndices == 0) {
+		if (fail || !hasTags || numIndices == 0) {
 			LOG.info(mTile + " failed reading way: bytes:" + bytes + " index:"
 			         + (Arrays.toString(index)) + " tag:"
-			         + (tags != null ? Arrays.deepToString(tags) : "null") + " "
+			         + (hasTags ? Arrays.deepToString(elem.tags.asArray()) : "null") + " "
 			         + numIndices + " " + coordCnt);
 			return false;
 		}
 
-		List<Tag> wayTags = new ArrayList<Tag>(Arrays.asList(tags));
-
-		if (type == TAG_TILE_LINE || type == TAG_TILE_POLY) {
-
-			for (LatLong[][] g : geoms)
-				mWays.add(new Way((byte) layer, wayTags, g, null));
-		} else {
-			//System.out.println("add poi" + position + " " + Arrays.deepToString(tags));
-			if (position != null)
-				mPois.add(new PointOfInterest((byte) layer, wayTags, position));
-		}
-
-		return true;
-	}
-
-	protected List<LatLong[][]> decodeInterleavedPoints(short[] index, int numPoints,
-	                                                    boolean poly) throws IOException {
-		int bytes = decodeVarint32();
-
-		readBuffer(bytes);
-
-		int cnt = 0;
-		int lastX = 0;
-		int lastY = 0;
-		boolean even = true;
-
-		byte[] buf = buffer;
-		int pos = bufferPos;
-		int end = pos + bytes;
-		int val;
-
-		List<LatLong[][]> geoms = new ArrayList<LatLong[][]>();
-		LatLong[][] geom;
-		if (index == null) {
-			LOG.info("skip coords " + numPoints + " byte:" + bytes);
-
-		}
-		for (int i = 0; i < index.length && index[i] >= 0;) {
-			if (index[i] == 0) {
-				i++;
-				continue;
-			}
-
-			if (!poly) {
-				geom = new LatLong[1][];
-				geom[0] = new LatLong[index[i]];
-				geoms.add(geom);
-				i++;
-				continue;
-			}
-
-			int rings = 0;
-			for (; i + rings < index.length && index[i + rings] > 0;)
-				rings++;
-
-			geom = new LatLong[rings][];
-			for (cnt = 0; cnt < rings; cnt++) {
-				geom[cnt] = new LatLong[index[i + cnt] + 1];
-			}
-			i += rings;
-			geoms.add(geom);
-		}
-
-		int curGeom = 0;
-		geom = geoms.get(curGeom);
-
-		int ring = 0;
-		int num = 0;
-
-		while (pos < end) {
-			if (buf[pos] >= 0) {
-				val = buf[pos++];
-
-			} else if (buf[pos + 1] >= 0) {
-				val = (buf[pos++] & 0x7f)
-				      | buf[pos++] << 7;
-
-			} else if (buf[pos + 2] >= 0) {
-				val = (buf[pos++] & 0x7f)
-				      | (buf[pos++] & 0x7f) << 7
-				      | (buf[pos++]) << 14;
-
-			} else if (buf[pos + 3] >= 0) {
-				val = (buf[pos++] & 0x7f)
-				      | (buf[pos++] & 0x7f) << 7
-				      | (buf[pos++] & 0x7f) << 14
-				      | (buf[pos++]) << 21;
+		elem.type = geometryType(type);
+		if (type != TAG_TILE_POINT) {
 
+			if (index == null) {
+				// single line
+				numIndices = 1;
+				elem.ensureIndexSize(1, false)[0] = elem.getNumPoints();
 			} else {
-				val = (buf[pos++] & 0x7f)
-				      | (buf[pos++] & 0x7f) << 7
-				      | (buf[pos++] & 0x7f) << 14
-				      | (buf[pos++] & 0x7f) << 21
-				      | (buf[pos]) << 28;
-
-				if (buf[pos++] < 0)
-					throw new IOException("malformed VarInt32");
+				int[] geomIndex = elem.ensureIndexSize(numIndices, false);
+				for (int i = 0; i < numIndices; i++)
+					geomIndex[i] = index[i];
 			}
+			elem.indexPos = numIndices;
+			elem.index[numIndices] = -1;
+		}
 
-			// zigzag decoding
-			int s = ((val >>> 1) ^ -(val & 1));
-
-			if (even) {
-				lastX = lastX + s;
-				even = false;
-			} else {
-				lastY = lastY + s;
-				even = true;
-
-				geom[ring][num++] = new LatLong(lastY / mScale, lastX / mScale);
-
-				// close polygon
-				if (poly && num == geom[ring].length - 1) {
-					geom[ring][num++] = geom[ring][0];
-				}
+		if (type == TAG_TILE_LINE)
+			numLines++;
+		else if (type == TAG_TILE_POLY)
+			numPolygons++;
+		else
+			numPoints++;
 
-				if (num < geom[ring].length)
-					continue;
+		mSink.process(elem);
 
-				num = 0;
-				ring++;
+		return true;
+	}
 
-				if (ring < geom.length)
-					continue;
+	/**
+	 * Decode delta encoded x,y coordinates into geom.points, or into
+	 * geom.fixedPoints in fixed-point mode.
+	 *
+	 * @return number of decoded points
+	 */
+	protected int decodeInterleavedPoints(GeometryBuffer geom, int numPoints)
+	        throws IOException {
 
-				if (geoms.size() == ++curGeom)
-					break;
+		// ignore a trailing x without y
+		int cnt = decodePacked(true) & ~1;
+		int[] values = packedValues;
 
-				geom = geoms.get(curGeom);
-				ring = 0;
+		if (!geom.fixed) {
+			float[] points = geom.ensurePointSize(cnt >> 1, false);
+			float scale = mInvScale;
+			for (int i = 0; i < cnt; i++)
+				points[i] = values[i] * scale;
+		} else {
+			short[] fixedPoints = geom.ensureFixedPointSize(cnt >> 1, false);
+			for (int i = 0; i < cnt; i++) {
+				int v = values[i];
+				if (v != (short) v)
+					throw new IOException("coordinate out of range");
+				fixedPoints[i] = (short) v;
 			}
 		}
-		for (LatLong[][] g : geoms) {
-			int c = 0;
-			for (int i = 0; i < g.length; i++)
-				for (int j = 0; j < g[i].length; j++) {
-					if (g[i][j] == null)
-						c++;
-				}
-			if (c > 0)
-				System.out.println("eeek" + c);
-		}
-		// System.out.println("read points " + numPoints + "/" + cntAll);
-		if (pos != bufferPos + bytes)
-			throw new IOException("invalid array " + numPoints);
 
-		bufferPos = pos;
+		geom.pointPos = cnt;
 
-		return geoms;
+		return cnt >> 1;
 	}
 
 	private static int deZigZag(int val) {
 		return ((val >>> 1) ^ -(val & 1));
 	}
 
-	private Tag[] decodeElementTags(int numTags) throws IOException {
+	/**
+	 * Read the tag ids of an element into mTmpShortArray.
+	 *
+	 * @return false when an id is not a tile tag
+	 */
+	private boolean decodeElementTags(int numTags) throws IOException {
 		if (mTmpShortArray.length < numTags)
 			mTmpShortArray = new short[numTags];
 		short[] tagIds = mTmpShortArray;
 
 		decodeVarintArray(numTags, tagIds);
 
-		Tag[] tags;
-
-		if (numTags < 11)
-			tags = mElementTags[numTags - 1];
-		else
-			tags = new Tag[numTags];
-
 		int max = curTags.numTags;
 
 		for (int i = 0; i < numTags; i++) {
 			int idx = tagIds[i];
 
-			if (idx < 0 || idx > max) {
+			if (idx < 0 || idx >= max) {
 				LOG.info(mTile + " invalid tag:" + idx + " " + i);
-				return null;
+				return false;
 			}
-
-			tags[i] = curTags.tags[idx];
 		}
 
-		return tags;
+		return true;
+	}
+
+	private static GeometryType geometryType(int type) {
+		if (type == TAG_TILE_POINT)
+			return GeometryType.POINT;
+
+		return (type == TAG_TILE_POLY) ? GeometryType.POLY : GeometryType.LINE;
 	}
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * MetricsSink that keeps counters and histograms in memory, e.g. to be
+ * polled and exported periodically. Optionally forwards to another sink.
+ */
+public class TileMetrics implements MetricsSink {
+
+	/**
+	 * Histogram with power of two buckets: bucket i counts values in
+	 * [2^(i-1), 2^i), bucket 0 counts values <= 0.
+	 */
+	public static class Histogram {
+		private final AtomicLongArray mBuckets = new AtomicLongArray(64);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mSum = new AtomicLong();
+
+		public void add(long value) {
+			int bucket = value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+			if (bucket > 63)
+				bucket = 63;
+			mBuckets.incrementAndGet(bucket);
+			mCount.incrementAndGet();
+			mSum.addAndGet(value);
+		}
+
+		public long getCount() {
+			return mCount.get();
+		}
+
+		public long getSum() {
+			return mSum.get();
+		}
+
+		/**
+		 * @param quantile
+		 *            0..1
+		 * @return upper bound of the bucket containing the quantile
+		 */
+		public long getQuantile(double quantile) {
+			long count = mCount.get();
+			long rank = (long) Math.ceil(quantile * count);
+			long n = 0;
+			for (int i = 0; i < 64; i++) {
+				n += mBuckets.get(i);
+				if (n >= rank && n > 0)
+					return i == 0 ? 0 : (i == 63 ? Long.MAX_VALUE : 1L << i);
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			long count = getCount();
+			return "n=" + count
+			        + " avg=" + (count == 0 ? 0 : getSum() / count)
+			        + " p50<" + getQuantile(0.5)
+			        + " p99<" + getQuantile(0.99);
+		}
+	}
+
+	public final AtomicLong tiles = new AtomicLong();
+	public final AtomicLong failed = new AtomicLong();
+	public final AtomicLong cacheHits = new AtomicLong();
+	public final AtomicLong bytes = new AtomicLong();
+	public final AtomicLong elements = new AtomicLong();
+	public final AtomicLong leftOverDrains = new AtomicLong();
+	public final AtomicLong leftOverBytes = new AtomicLong();
+
+	public final AtomicLongArray reconnects =
+	        new AtomicLongArray(Reconnect.values().length);
+
+	public final Histogram connectTime = new Histogram();
+	public final Histogram firstByteTime = new Histogram();
+	public final Histogram transferTime = new Histogram();
+	public final Histogram decodeTime = new Histogram();
+	public final Histogram tileSize = new Histogram();
+	public final Histogram tileElements = new Histogram();
+
+	private final MetricsSink mForward;
+
+	public TileMetrics() {
+		this(null);
+	}
+
+	/**
+	 * @param forward
+	 *            sink that also receives all events, may be null
+	 */
+	public TileMetrics(MetricsSink forward) {
+		mForward = forward;
+	}
+
+	@Override
+	public void tileLoaded(Tile tile, TileStats stats) {
+		tiles.incrementAndGet();
+
+		if (!stats.success)
+			failed.incrementAndGet();
+
+		if (stats.cached)
+			cacheHits.incrementAndGet();
+
+		if (stats.connectTime > 0)
+			connectTime.add(stats.connectTime);
+		if (stats.firstByteTime >= 0)
+			firstByteTime.add(stats.firstByteTime);
+		if (stats.transferTime >= 0)
+			transferTime.add(stats.transferTime);
+		if (stats.decodeTime >= 0)
+			decodeTime.add(stats.decodeTime);
+
+		int numElements = stats.numLines + stats.numPolygons + stats.numPoints;
+		bytes.addAndGet(stats.bytes);
+		elements.addAndGet(numElements);
+		tileSize.add(stats.bytes);
+		tileElements.add(numElements);
+
+		if (mForward != null)
+			mForward.tileLoaded(tile, stats);
+	}
+
+	@Override
+	public void reconnect(Reconnect cause) {
+		reconnects.incrementAndGet(cause.ordinal());
+
+		if (mForward != null)
+			mForward.reconnect(cause);
+	}
+
+	@Override
+	public void leftOverBytes(int bytes) {
+		leftOverDrains.incrementAndGet();
+		leftOverBytes.addAndGet(bytes);
+
+		if (mForward != null)
+			mForward.leftOverBytes(bytes);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("tiles:").append(tiles)
+		        .append(" failed:").append(failed)
+		        .append(" cached:").append(cacheHits)
+		        .append(" bytes:").append(bytes)
+		        .append(" elements:").append(elements)
+		        .append(" left-over:").append(leftOverDrains)
+		        .append('/').append(leftOverBytes).append("b\n");
+
+		sb.append("reconnects:");
+		for (Reconnect r : Reconnect.values())
+			sb.append(' ').append(r).append('=').append(reconnects.get(r.ordinal()));
+
+		sb.append("\nconnect[ns]: ").append(connectTime)
+		        .append("\nfirst byte[ns]: ").append(firstByteTime)
+		        .append("\ntransfer[ns]: ").append(transferTime)
+		        .append("\ndecode[ns]: ").append(decodeTime)
+		        .append("\nsize[b]: ").append(tileSize)
+		        .append("\nelements: ").append(tileElements);
+
+		return sb.toString();
+	}
+}
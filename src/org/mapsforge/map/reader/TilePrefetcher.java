@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.model.MapViewPosition;
+import org.mapsforge.map.model.common.Observer;
+
+/**
+ * Observes the MapViewPosition to estimate pan velocity and zoom direction
+ * and prefetches the tiles that are about to become visible, plus the
+ * parent or child tiles of the view. Uses VtmMapDatabase.prefetch() which
+ * yields to readMapData() calls for visible tiles. The thread only wakes up
+ * when the position changes.
+ */
+public class TilePrefetcher extends Thread implements Observer {
+
+	/** min ms between position samples, changes in between are merged */
+	private final static int INTERVAL = 100;
+	/** ms without change after which the view is considered at rest */
+	private final static int IDLE = 500;
+	/** predict the view position this many ms ahead */
+	private final static int LOOKAHEAD = 500;
+	/** weight of the previous velocity estimate */
+	private final static double SMOOTHING = 0.5;
+	/** min predicted movement in tiles to prefetch ahead */
+	private final static double MIN_MOVEMENT = 0.25;
+	private final static int MAX_ZOOM = 18;
+	/** forget prefetched tiles after this many */
+	private final static int MAX_PREFETCHED = 1024;
+
+	private final MapViewPosition mPosition;
+	private final VtmMapDatabase mDatabase;
+	private final int mRadius;
+
+	// last sample, in tiles at mZoom
+	private double mX;
+	private double mY;
+	private int mZoom = -1;
+	private long mTime;
+
+	// tiles per ms
+	private double mVelocityX;
+	private double mVelocityY;
+	// -1 zooming out, 1 zooming in
+	private int mZoomDirection;
+
+	private final HashSet<Long> mPrefetched = new HashSet<Long>();
+
+	private volatile boolean mRunning = true;
+	// set by onChange(), guarded by 'this'
+	private boolean mChanged;
+
+	/**
+	 * @param radius
+	 *            visible tiles around the center tile
+	 */
+	public TilePrefetcher(MapViewPosition position, VtmMapDatabase database, int radius) {
+		super("TilePrefetcher");
+		setDaemon(true);
+		setPriority(MIN_PRIORITY);
+
+		mPosition = position;
+		mDatabase = database;
+		mRadius = radius;
+	}
+
+	@Override
+	public void run() {
+		mPosition.addObserver(this);
+		try {
+			while (mRunning) {
+				try {
+					waitForChange();
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				List<Tile> tiles = sample();
+				if (tiles.isEmpty())
+					continue;
+
+				int done = mDatabase.prefetch(tiles.toArray(new Tile[tiles.size()]));
+
+				// remember handled tiles, the others are retried on the next
+				// change
+				if (mPrefetched.size() + done > MAX_PREFETCHED)
+					mPrefetched.clear();
+
+				for (int i = 0; i < done; i++)
+					mPrefetched.add(key(tiles.get(i)));
+			}
+		} finally {
+			mPosition.removeObserver(this);
+		}
+	}
+
+	@Override
+	public synchronized void onChange() {
+		mChanged = true;
+		notify();
+	}
+
+	/**
+	 * Wait until the position changed and at least INTERVAL ms passed since
+	 * the last sample.
+	 */
+	private void waitForChange() throws InterruptedException {
+		synchronized (this) {
+			while (!mChanged)
+				wait();
+		}
+
+		long wait = mTime + INTERVAL - System.currentTimeMillis();
+		if (wait > 0)
+			sleep(wait);
+
+		synchronized (this) {
+			mChanged = false;
+		}
+	}
+
+	public void finish() {
+		mRunning = false;
+		interrupt();
+	}
+
+	/**
+	 * Update velocity and zoom direction from the current position.
+	 *
+	 * @return tiles to prefetch, most important first
+	 */
+	private List<Tile> sample() {
+		LatLong center = mPosition.getCenter();
+		int zoom = mPosition.getZoomLevel();
+		long now = System.currentTimeMillis();
+
+		double x = longitudeToTileX(center.longitude, zoom);
+		double y = latitudeToTileY(center.latitude, zoom);
+
+		if (zoom != mZoom) {
+			if (mZoom >= 0)
+				mZoomDirection = zoom > mZoom ? 1 : -1;
+			mVelocityX = 0;
+			mVelocityY = 0;
+		} else if (now - mTime > IDLE) {
+			// moving again after a rest
+			mVelocityX = 0;
+			mVelocityY = 0;
+		} else if (now > mTime) {
+			double dt = now - mTime;
+			mVelocityX = mVelocityX * SMOOTHING + (x - mX) / dt * (1 - SMOOTHING);
+			mVelocityY = mVelocityY * SMOOTHING + (y - mY) / dt * (1 - SMOOTHING);
+		}
+
+		mX = x;
+		mY = y;
+		mZoom = zoom;
+		mTime = now;
+
+		List<Tile> tiles = new ArrayList<Tile>();
+
+		int cx = (int) x;
+		int cy = (int) y;
+
+		// tiles around the predicted center that are not yet visible
+		double dx = mVelocityX * LOOKAHEAD;
+		double dy = mVelocityY * LOOKAHEAD;
+		if (Math.abs(dx) > MIN_MOVEMENT || Math.abs(dy) > MIN_MOVEMENT) {
+			int px = (int) (x + dx);
+			int py = (int) (y + dy);
+
+			for (int r = 0; r <= mRadius + 1; r++) {
+				for (int ty = py - r; ty <= py + r; ty++) {
+					for (int tx = px - r; tx <= px + r; tx++) {
+						// only the ring at distance r
+						if (Math.abs(tx - px) != r && Math.abs(ty - py) != r)
+							continue;
+
+						if (Math.abs(tx - cx) <= mRadius && Math.abs(ty - cy) <= mRadius)
+							continue;
+
+						add(tiles, tx, ty, zoom);
+					}
+				}
+			}
+		}
+
+		if (mZoomDirection > 0 && zoom < MAX_ZOOM) {
+			// children of the center tile
+			add(tiles, cx * 2, cy * 2, zoom + 1);
+			add(tiles, cx * 2 + 1, cy * 2, zoom + 1);
+			add(tiles, cx * 2, cy * 2 + 1, zoom + 1);
+			add(tiles, cx * 2 + 1, cy * 2 + 1, zoom + 1);
+		}
+
+		if (zoom > 0) {
+			// parents of the visible tiles
+			int r = mZoomDirection < 0 ? (mRadius + 1) / 2 : 0;
+			for (int ty = (cy >> 1) - r; ty <= (cy >> 1) + r; ty++)
+				for (int tx = (cx >> 1) - r; tx <= (cx >> 1) + r; tx++)
+					add(tiles, tx, ty, zoom - 1);
+		}
+
+		return tiles;
+	}
+
+	private void add(List<Tile> tiles, int x, int y, int zoom) {
+		int max = 1 << zoom;
+		if (x < 0 || y < 0 || x >= max || y >= max)
+			return;
+
+		Tile tile = new Tile(x, y, (byte) zoom);
+		if (!mPrefetched.contains(key(tile)))
+			tiles.add(tile);
+	}
+
+	private static Long key(Tile tile) {
+		return Long.valueOf(VtmPackMapDatabase.key(tile.zoomLevel, tile.tileX, tile.tileY));
+	}
+
+	/**
+	 * @return fractional tile x coordinate
+	 */
+	static double longitudeToTileX(double longitude, int zoom) {
+		return (longitude + 180) / 360 * (1 << zoom);
+	}
+
+	/**
+	 * @return fractional tile y coordinate
+	 */
+	static double latitudeToTileY(double latitude, int zoom) {
+		double sinLat = Math.sin(Math.toRadians(latitude));
+		double y = 0.5 - Math.log((1 + sinLat) / (1 - sinLat)) / (4 * Math.PI);
+		return Math.min(Math.max(y, 0), 1) * (1 << zoom);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+/**
+ * Measurements for one tile, times are in nanoseconds and -1 when not
+ * measured.
+ */
+public class TileStats {
+
+	/** tile was read from DiskTileCache or MapResultCache */
+	public boolean cached;
+	/** tile was decoded */
+	public boolean success;
+
+	/** time to open the connection, 0 when a keep-alive connection was used */
+	public long connectTime;
+	/** from sending the request to the first byte of the response */
+	public long firstByteTime;
+	/** from the first byte to the end of the tile content */
+	public long transferTime;
+	public long decodeTime;
+
+	/** tile content size */
+	public int bytes;
+
+	public int numLines;
+	public int numPolygons;
+	public int numPoints;
+
+	void reset() {
+		cached = false;
+		success = false;
+		connectTime = -1;
+		firstByteTime = -1;
+		transferTime = -1;
+		decodeTime = -1;
+		bytes = 0;
+		numLines = 0;
+		numPolygons = 0;
+		numPoints = 0;
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.Layer;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.queue.JobQueue;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.reader.header.MapFileInfo;
+
+/**
+ * Alternative to a fixed set of MapWorkers: runs each RendererJob as its
+ * own task on a cached thread pool, with at most 'concurrency' tasks in
+ * flight. A task blocked on the network only holds an otherwise idle pool
+ * thread, so the number of tiles loading at once is bounded by the
+ * semaphore instead of the number of workers.
+ *
+ * Jobs that are queued at the same time are taken together, up to
+ * 'batchSize', and their tiles loaded with one batch request so that they
+ * can be pipelined on one connection.
+ */
+class TileTaskDispatcher extends Thread {
+
+	private final TileCache mTileCache;
+	private final JobQueue<RendererJob> mJobQueue;
+	private final Layer mLayer;
+	private final VtmMapDatabase mMapDatabase;
+	private final GraphicFactory mGraphicFactory;
+	private final int mBatchSize;
+
+	private final Semaphore mPermits;
+	private final ExecutorService mExecutor;
+
+	// DatabaseRenderer is not thread-safe: each task borrows one, at most
+	// 'concurrency' are created
+	private final ConcurrentLinkedQueue<BatchRenderer> mRenderers =
+	        new ConcurrentLinkedQueue<BatchRenderer>();
+
+	private volatile TilePriority mPriority;
+	private volatile boolean mRunning = true;
+
+	/**
+	 * @param batchSize
+	 *            max number of jobs loaded with one batch request, should
+	 *            match the 'pipeline' option of the database
+	 */
+	TileTaskDispatcher(TileCache tileCache, JobQueue<RendererJob> jobQueue,
+	        Layer layer, VtmMapDatabase mapDatabase, GraphicFactory graphicFactory,
+	        int concurrency, int batchSize) {
+		super("TileTaskDispatcher");
+
+		mTileCache = tileCache;
+		mJobQueue = jobQueue;
+		mLayer = layer;
+		mMapDatabase = mapDatabase;
+		mGraphicFactory = graphicFactory;
+		mBatchSize = batchSize < 1 ? 1 : batchSize;
+
+		mPermits = new Semaphore(concurrency);
+		mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TileTask");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (mRunning) {
+			final ArrayList<RendererJob> jobs = new ArrayList<RendererJob>(mBatchSize);
+			try {
+				mPermits.acquire();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			try {
+				jobs.add(mJobQueue.get());
+
+				// one permit per job. get() does not block here as this
+				// is the only thread taking jobs
+				while (jobs.size() < mBatchSize && mJobQueue.size() > 0
+				        && mPermits.tryAcquire())
+					jobs.add(mJobQueue.get());
+
+			} catch (InterruptedException e) {
+				finished(jobs);
+				mPermits.release();
+				break;
+			}
+
+			try {
+				mExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							renderTiles(jobs);
+						} finally {
+							finished(jobs);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				finished(jobs);
+				break;
+			}
+		}
+
+		mExecutor.shutdownNow();
+	}
+
+	private void finished(ArrayList<RendererJob> jobs) {
+		for (int i = 0; i < jobs.size(); i++)
+			mJobQueue.remove(jobs.get(i));
+
+		mPermits.release(jobs.size());
+	}
+
+	/**
+	 * @param priority
+	 *            jobs for tiles that are no longer needed when a task
+	 *            starts are dropped, the layer creates a new job when the
+	 *            tile becomes visible again
+	 */
+	void setPriority(TilePriority priority) {
+		mPriority = priority;
+	}
+
+	private void renderTiles(ArrayList<RendererJob> jobs) {
+		TilePriority priority = mPriority;
+
+		ArrayList<RendererJob> needed = new ArrayList<RendererJob>(jobs.size());
+		for (int i = 0; i < jobs.size(); i++) {
+			RendererJob job = jobs.get(i);
+			if (!mRunning)
+				return;
+
+			if (mTileCache.containsKey(job))
+				continue;
+
+			if (priority != null && priority.getPriority(job.tile) < 0)
+				continue;
+
+			needed.add(job);
+		}
+
+		if (needed.isEmpty())
+			return;
+
+		// a single tile is loaded by the renderer itself
+		MapReadResult[] results = null;
+		if (needed.size() > 1) {
+			Tile[] tiles = new Tile[needed.size()];
+			for (int i = 0; i < tiles.length; i++)
+				tiles[i] = needed.get(i).tile;
+
+			results = new MapReadResult[tiles.length];
+			mMapDatabase.readMapData(tiles, results);
+		}
+
+		BatchRenderer renderer = mRenderers.poll();
+		if (renderer == null)
+			renderer = new BatchRenderer(mMapDatabase, mGraphicFactory);
+
+		try {
+			for (int i = 0; i < needed.size() && mRunning; i++) {
+				RendererJob job = needed.get(i);
+				if (results != null)
+					renderer.database.set(job.tile, results[i]);
+
+				Bitmap bitmap = renderer.renderer.executeJob(job);
+				renderer.database.set(null, null);
+
+				if (mRunning && bitmap != null) {
+					mTileCache.put(job, bitmap);
+					mLayer.requestRedraw();
+				}
+			}
+		} finally {
+			renderer.database.set(null, null);
+			mRenderers.offer(renderer);
+		}
+	}
+
+	void finish() {
+		mRunning = false;
+		interrupt();
+	}
+
+	private static class BatchRenderer {
+		final BatchDatabase database;
+		final DatabaseRenderer renderer;
+
+		BatchRenderer(MapDatabase mapDatabase, GraphicFactory graphicFactory) {
+			database = new BatchDatabase(mapDatabase);
+			renderer = new DatabaseRenderer(database, graphicFactory);
+		}
+	}
+
+	/** returns the result loaded with the batch, other tiles are read from the database */
+	private static class BatchDatabase extends MapDatabase {
+		private final MapDatabase mDatabase;
+		private Tile mTile;
+		private MapReadResult mResult;
+
+		BatchDatabase(MapDatabase mapDatabase) {
+			mDatabase = mapDatabase;
+		}
+
+		void set(Tile tile, MapReadResult result) {
+			mTile = tile;
+			mResult = result;
+		}
+
+		@Override
+		public MapReadResult readMapData(Tile tile) {
+			if (tile == mTile)
+				return mResult;
+
+			return mDatabase.readMapData(tile);
+		}
+
+		@Override
+		public MapFileInfo getMapFileInfo() {
+			return mDatabase.getMapFileInfo();
+		}
+
+		@Override
+		public boolean hasOpenFile() {
+			return mDatabase.hasOpenFile();
+		}
+	}
+}
@@ -20,29 +20,103 @@ package org.mapsforge.map.reader;
 
 // modified new String so that it reuses temporary buffer instead of reallocation
 // when guess for size was incorrect.
+// Short strings are cached by their bytes: names and values repeat across
+// neighbouring tiles and get the same String instance. A miss costs the
+// hash and a copy of the bytes on top of the decode.
 public class UTF8Decoder {
 	private static final char REPLACEMENT_CHAR = (char) 0xfffd;
 
+	/** default number of cache entries */
+	public static final int DEFAULT_CACHE_SIZE = 512;
+	/** longer strings are not cached */
+	private static final int MAX_CACHED_BYTES = 64;
+
 	char[] mBuffer;
 	int mBufferSize = 0;
 
+	// direct mapped cache of decoded strings and their bytes
+	private final String[] mCacheStrings;
+	private final byte[][] mCacheBytes;
+	private final int mCacheMask;
+
+	public UTF8Decoder() {
+		this(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param cacheSize
+	 *            number of cached strings, rounded up to a power of two. 0 to
+	 *            disable the cache.
+	 */
+	public UTF8Decoder(int cacheSize) {
+		int size = 0;
+		if (cacheSize > 0) {
+			size = 1;
+			while (size < cacheSize)
+				size <<= 1;
+		}
+
+		mCacheStrings = new String[size];
+		mCacheBytes = new byte[size][];
+		mCacheMask = size - 1;
+	}
+
 	public String decode(byte[] data, int offset, int byteCount) {
 		if ((offset | byteCount) < 0 || byteCount > data.length - offset) {
 			throw new IllegalArgumentException("Brrr " + data.length
 					+ " " + offset + " " + byteCount);
 		}
 
+		if (mCacheMask < 0 || byteCount > MAX_CACHED_BYTES)
+			return decodeString(data, offset, byteCount);
+
+		int hash = byteCount;
+		for (int i = offset, end = offset + byteCount; i < end; i++)
+			hash = 31 * hash + data[i];
+
+		int slot = (hash ^ (hash >>> 16)) & mCacheMask;
+
+		byte[] bytes = mCacheBytes[slot];
+		if (bytes != null && bytes.length == byteCount) {
+			int i = 0;
+			while (i < byteCount && bytes[i] == data[offset + i])
+				i++;
+
+			if (i == byteCount)
+				return mCacheStrings[slot];
+		}
+
+		String result = decodeString(data, offset, byteCount);
+
+		bytes = new byte[byteCount];
+		System.arraycopy(data, offset, bytes, 0, byteCount);
+		mCacheBytes[slot] = bytes;
+		mCacheStrings[slot] = result;
+
+		return result;
+	}
+
+	private String decodeString(byte[] data, int offset, int byteCount) {
 		byte[] d = data;
 		char[] v;
 
-		if (mBufferSize < byteCount)
+		if (mBufferSize < byteCount) {
 			v = mBuffer = new char[byteCount];
-		else
+			mBufferSize = byteCount;
+		} else
 			v = mBuffer;
 
 		int idx = offset;
 		int last = offset + byteCount;
 		int s = 0;
+
+		// ASCII prefix
+		while (idx < last && d[idx] >= 0)
+			v[s++] = (char) d[idx++];
+
+		if (idx == last)
+			return new String(v, 0, s);
+
 		outer: while (idx < last) {
 			byte b0 = d[idx++];
 			if ((b0 & 0x80) == 0) {
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.model.MapViewPosition;
+
+/**
+ * Prioritizes tiles by their distance from the center of the view, tiles
+ * at the current zoom level before those one level above or below. Tiles
+ * further away than the view extent plus the prefetch radius, or at other
+ * zoom levels, are no longer needed. Until the view size is known no tile
+ * is dropped.
+ */
+public class ViewportPriority implements TilePriority {
+
+	/** ms to reuse the sampled view position */
+	private final static int UPDATE_INTERVAL = 50;
+
+	private final MapViewPosition mPosition;
+	private final int mRadius;
+
+	/** half of the view extent in tiles, 0 while unknown */
+	private double mHalfWidth;
+	private double mHalfHeight;
+
+	private LatLong mCenter;
+	private int mZoom;
+	private long mTime;
+
+	/**
+	 * @param radius
+	 *            tiles beyond the edges of the view that are still needed.
+	 */
+	public ViewportPriority(MapViewPosition position, int radius) {
+		mPosition = position;
+		mRadius = radius;
+	}
+
+	/**
+	 * @param width
+	 *            width of the map view in pixels.
+	 * @param height
+	 *            height of the map view in pixels.
+	 */
+	public synchronized void setViewSize(int width, int height) {
+		mHalfWidth = width / (2.0 * Tile.TILE_SIZE);
+		mHalfHeight = height / (2.0 * Tile.TILE_SIZE);
+	}
+
+	@Override
+	public synchronized double getPriority(Tile tile) {
+		long now = System.currentTimeMillis();
+		if (mCenter == null || now - mTime > UPDATE_INTERVAL) {
+			mCenter = mPosition.getCenter();
+			mZoom = mPosition.getZoomLevel();
+			mTime = now;
+		}
+
+		int dz = tile.zoomLevel - mZoom;
+		if (dz > 1 || dz < -1)
+			return -1;
+
+		double cx = TilePrefetcher.longitudeToTileX(mCenter.longitude, tile.zoomLevel);
+		double cy = TilePrefetcher.latitudeToTileY(mCenter.latitude, tile.zoomLevel);
+
+		double dx = Math.abs(tile.tileX + 0.5 - cx);
+		double dy = Math.abs(tile.tileY + 0.5 - cy);
+
+		// view extent in tiles of this zoom level, plus half a tile so
+		// that partially visible tiles are within
+		double scale = (dz == 0 ? 1 : (dz > 0 ? 2 : 0.5));
+		double maxX = (mHalfWidth + mRadius) * scale + 0.5;
+		double maxY = (mHalfHeight + mRadius) * scale + 0.5;
+
+		if (mHalfWidth > 0 && (dx > maxX || dy > maxY))
+			return -1;
+
+		// all needed tiles of the current level before the other levels
+		double zoomWeight = Math.max(mHalfWidth, mHalfHeight) + mRadius + 1.5;
+
+		return Math.max(dx, dy) + Math.abs(dz) * zoomWeight;
+	}
+}
@@ -14,11 +14,25 @@
  */
 package org.mapsforge.map.reader;
 
-import java.io.InputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.mapsforge.core.model.Tile;
@@ -32,22 +46,745 @@ import org.mapsforge.map.reader.header.MapFileInfo;
 public class VtmMapDatabase extends MapDatabase {
 	private static final Logger LOG = Logger.getLogger(VtmMapDatabase.class.getName());
 
+	/** number of keep-alive connections used when not set in options */
+	public final static int DEFAULT_CONNECTIONS = 4;
+
+	/** tile cache size in MB used when not set in options */
+	public final static int DEFAULT_CACHE_SIZE = 100;
+
+	/** decoded tile cache size in MB used when not set in options */
+	public final static int DEFAULT_MEMORY_CACHE_SIZE = 16;
+
+	/** min tile size in bytes to decode elements in parallel */
+	private final static int PARALLEL_THRESHOLD = 64 * 1024;
+
+	/** receives the result of an asynchronous readMapData() */
+	public interface MapDataCallback {
+		/**
+		 * @param result
+		 *            the MapReadResult, or null on failure or when the
+		 *            request was dropped. Shared, see readMapData(Tile)
+		 */
+		void completed(Tile tile, MapReadResult result);
+	}
+
+	/** one http connection with its own decoder, only used by one thread at a time */
+	static class Connection {
+		final LwHttp http;
+		final TileDecoder decoder;
+		// content of the current tile
+		byte[] content = new byte[0];
+		// measurements for the current tile
+		final TileStats stats = new TileStats();
+
+		Connection(LwHttp http) {
+			this.http = http;
+			this.decoder = new TileDecoder();
+		}
+	}
 
 	// 'open' state
 	private boolean mOpen = false;
-	private LwHttp conn;
+	private LinkedBlockingQueue<Connection> mPool;
+	private Connection[] mConnections;
+	private DiskTileCache mCache;
+	private MapResultCache mResults;
+	private OffHeapTileStore mOffHeap;
+	private MetricsSink mMetrics;
+
+	// 'nio' transport, connections are then only used for decoding
+	private NioHttp mNio;
+	private TilePriority mPriority;
+	private ExecutorService mDecoders;
+
+	// decodes element ranges of large tiles, see TileDecoder.setParallel()
+	private ExecutorService mParallel;
+
+	// tiles currently being loaded, requests for the same tile share the
+	// result. Keyed by VtmPackMapDatabase.key()
+	private final ConcurrentHashMap<Long, FutureTask<MapReadResult>> mLoading =
+	        new ConcurrentHashMap<Long, FutureTask<MapReadResult>>();
+	private final HashMap<Long, Pending> mWaiting = new HashMap<Long, Pending>();
 
+	// readMapData() calls in progress, prefetch() yields to them
+	private final AtomicInteger mForeground = new AtomicInteger();
+	// prefetched tiles in flight with the 'nio' transport
+	private final AtomicInteger mPrefetching = new AtomicInteger();
+
+	/**
+	 * The returned MapReadResult is shared with concurrent requests for the
+	 * same tile and, while it is in the memory cache, with later ones. It
+	 * must not be modified.
+	 */
 	@Override
-	public MapReadResult readMapData(Tile tile) {
+	public MapReadResult readMapData(final Tile tile) {
 		//LOG.info(">>> " + tile);
 
+		if (mNio != null) {
+			MapReadResult[] result = new MapReadResult[1];
+			readMapData(new Tile[] { tile }, result);
+			return result[0];
+		}
+
+		MapReadResult cached = readMemory(tile);
+		if (cached != null)
+			return cached;
+
+		mForeground.incrementAndGet();
+		try {
+			return readShared(tile, null);
+		} finally {
+			mForeground.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Load tile or wait for the result when it is already being loaded.
+	 *
+	 * @param c
+	 *            connection to use, or null to take one from the pool. A
+	 *            tile that is already being loaded is then skipped: the load
+	 *            may wait for the connection held by the caller
+	 * @return the result, or null on failure or when skipped
+	 */
+	private MapReadResult readShared(final Tile tile, final Connection c) {
+		Long key = Long.valueOf(VtmPackMapDatabase.key(tile.zoomLevel, tile.tileX, tile.tileY));
+
+		FutureTask<MapReadResult> task = new FutureTask<MapReadResult>(
+		        new Callable<MapReadResult>() {
+			        @Override
+			        public MapReadResult call() {
+				        if (c == null)
+					        return loadMapData(tile);
+
+				        return loadMapData(c, tile);
+			        }
+		        });
+
+		FutureTask<MapReadResult> loading = mLoading.putIfAbsent(key, task);
+		if (loading != null && c != null)
+			return null;
+
+		if (loading == null) {
+			loading = task;
+			try {
+				task.run();
+			} finally {
+				mLoading.remove(key, task);
+			}
+		}
+
+		try {
+			return loading.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOG.info(tile + " load failed: " + e.getCause());
+		}
+		return null;
+	}
+
+	private MapReadResult loadMapData(Tile tile) {
+		Connection c;
+		try {
+			c = mPool.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		try {
+			return loadMapData(c, tile);
+		} finally {
+			mPool.offer(c);
+		}
+	}
+
+	private MapReadResult loadMapData(Connection c, Tile tile) {
+		MapReadResult result = readCached(c, tile);
+		if (result == null)
+			result = loadTile(c, tile);
+
+		report(c, tile);
+		return result;
+	}
+
+	/**
+	 * Load a batch of tiles on one connection. When the 'pipeline' option is
+	 * set the requests are sent back-to-back and the responses read in
+	 * order. Falls back to serial requests for the connection when the server
+	 * closes the connection before all pipelined responses were read.
+	 *
+	 * @param tiles
+	 *            the tiles to load
+	 * @param results
+	 *            receives the MapReadResult for tiles[i], or null on
+	 *            failure. Shared, see readMapData(Tile)
+	 */
+	public void readMapData(Tile[] tiles, final MapReadResult[] results) {
+		if (mNio != null) {
+			final CountDownLatch latch = new CountDownLatch(tiles.length);
+			for (int i = 0; i < tiles.length; i++) {
+				final int index = i;
+				readMapData(tiles[i], new MapDataCallback() {
+					@Override
+					public void completed(Tile tile, MapReadResult result) {
+						results[index] = result;
+						latch.countDown();
+					}
+				}, false);
+			}
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+
+		Connection c;
+		mForeground.incrementAndGet();
+		try {
+			c = mPool.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			mForeground.decrementAndGet();
+			return;
+		}
+
+		try {
+			readMapData(c, tiles, results);
+		} finally {
+			mPool.offer(c);
+			mForeground.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Load tiles into the memory or disk cache with low priority. Stops as
+	 * soon as readMapData() is called from another thread or no connection
+	 * is idle, so that visible tiles are not delayed by prefetching. Tiles
+	 * that are already being loaded are skipped.
+	 *
+	 * @return number of tiles that were handled, the remaining ones were
+	 *         skipped
+	 */
+	public int prefetch(Tile[] tiles) {
+		if (!mOpen || !hasCache())
+			return 0;
+
+		for (int i = 0; i < tiles.length; i++) {
+			if (mForeground.get() > 0)
+				return i;
+
+			Tile tile = tiles[i];
+			if (mResults != null || mOffHeap != null ? inMemory(tile) : mCache.contains(tile))
+				continue;
+
+			TilePriority priority = mPriority;
+			if (priority != null && priority.getPriority(tile) < 0)
+				continue;
+
+			if (mNio != null) {
+				if (mPrefetching.get() >= mConnections.length)
+					return i;
+
+				mPrefetching.incrementAndGet();
+				request(tile, new MapDataCallback() {
+					@Override
+					public void completed(Tile t, MapReadResult result) {
+						mPrefetching.decrementAndGet();
+					}
+				}, true);
+				continue;
+			}
+
+			Connection c = mPool.poll();
+			if (c == null)
+				return i;
+
+			try {
+				readShared(tile, c);
+			} finally {
+				mPool.offer(c);
+			}
+		}
+		return tiles.length;
+	}
+
+	/**
+	 * Load a tile asynchronously. With the 'nio' transport requests are
+	 * multiplexed on one I/O thread and the tiles decoded on a pool of
+	 * decoder threads, otherwise the tile is loaded on the calling thread.
+	 *
+	 * With a TilePriority set the request is dropped when the tile is no
+	 * longer needed before it was loaded.
+	 *
+	 * @param callback
+	 *            called from a decoder thread when the tile is loaded,
+	 *            failed or was dropped. Called from the calling thread for
+	 *            tiles in memory and without the 'nio' transport.
+	 */
+	public void readMapData(Tile tile, MapDataCallback callback) {
+		readMapData(tile, callback, true);
+	}
+
+	private void readMapData(Tile tile, final MapDataCallback callback, boolean cancellable) {
+		if (mNio == null) {
+			callback.completed(tile, readMapData(tile));
+			return;
+		}
+
+		MapReadResult cached = readMemory(tile);
+		if (cached != null) {
+			callback.completed(tile, cached);
+			return;
+		}
+
+		mForeground.incrementAndGet();
+		request(tile, new MapDataCallback() {
+			@Override
+			public void completed(Tile t, MapReadResult result) {
+				mForeground.decrementAndGet();
+				callback.completed(t, result);
+			}
+		}, cancellable);
+	}
+
+	/**
+	 * @param cancellable
+	 *            the request may be dropped when the TilePriority says the
+	 *            tile is no longer needed
+	 */
+	private void request(Tile tile, MapDataCallback callback, boolean cancellable) {
+		Long key = Long.valueOf(VtmPackMapDatabase.key(tile.zoomLevel, tile.tileX, tile.tileY));
+
+		final Pending pending;
+		synchronized (mWaiting) {
+			Pending p = mWaiting.get(key);
+			if (p != null) {
+				// already loading
+				p.callbacks.add(callback);
+				p.cancellable &= cancellable;
+				return;
+			}
+			pending = new Pending(key, tile, cancellable);
+			pending.callbacks.add(callback);
+			mWaiting.put(key, pending);
+		}
+
+		if (mCache != null) {
+			final byte[] data = mCache.get(tile);
+			if (data != null) {
+				mDecoders.execute(new Runnable() {
+					@Override
+					public void run() {
+						load(pending, data, true);
+					}
+				});
+				return;
+			}
+		}
+
+		mNio.request(tile, pending);
+	}
+
+	/**
+	 * A tile loaded with the 'nio' transport and the callbacks waiting for
+	 * it. NioHttp calls it on the I/O thread, the callbacks are run on a
+	 * decoder thread.
+	 */
+	private class Pending implements NioHttp.Callback {
+		final Long key;
+		final Tile tile;
+		// guarded by mWaiting
+		final List<MapDataCallback> callbacks = new ArrayList<MapDataCallback>(1);
+		boolean cancellable;
+
+		Pending(Long key, Tile tile, boolean cancellable) {
+			this.key = key;
+			this.tile = tile;
+			this.cancellable = cancellable;
+		}
+
+		@Override
+		public void completed(Tile t, final byte[] data) {
+			mDecoders.execute(new Runnable() {
+				@Override
+				public void run() {
+					load(Pending.this, data, false);
+				}
+			});
+		}
+
+		@Override
+		public void failed(Tile t) {
+			LOG.info(tile + " Network Error");
+			mDecoders.execute(new Runnable() {
+				@Override
+				public void run() {
+					loaded(Pending.this, null);
+				}
+			});
+		}
+
+		@Override
+		public boolean cancel(Tile t) {
+			// check and remove at once: request() must not join a pending
+			// tile that is being cancelled
+			synchronized (mWaiting) {
+				if (!cancellable)
+					return false;
+				mWaiting.remove(key);
+			}
+			mDecoders.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver(Pending.this, null);
+				}
+			});
+			return true;
+		}
+	}
+
+	/**
+	 * Decode data and pass the result to the callbacks of pending. They are
+	 * called and pending is removed also when decoding fails unexpectedly,
+	 * otherwise later requests for the tile would wait for it forever.
+	 */
+	private void load(Pending pending, byte[] data, boolean cached) {
+		MapReadResult result = null;
+		try {
+			result = decode(pending.tile, data, cached);
+		} finally {
+			loaded(pending, result);
+		}
+	}
+
+	private void loaded(Pending pending, MapReadResult result) {
+		synchronized (mWaiting) {
+			mWaiting.remove(pending.key);
+		}
+		deliver(pending, result);
+	}
+
+	/**
+	 * Pass result to the callbacks of pending, which must have been removed
+	 * from mWaiting.
+	 */
+	private static void deliver(Pending pending, MapReadResult result) {
+		// no callbacks are added after removal
+		for (MapDataCallback callback : pending.callbacks)
+			callback.completed(pending.tile, result);
+	}
+
+	/**
+	 * Decode a tile on a decoder thread, used by the 'nio' transport.
+	 */
+	private MapReadResult decode(Tile tile, byte[] data, boolean cached) {
+		Connection c;
+		try {
+			c = mPool.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		try {
+			c.stats.reset();
+			c.stats.cached = cached;
+			c.stats.bytes = data.length;
+
+			MapReadResult result = null;
+			try {
+				result = decode(c, tile, data, data.length);
+			} catch (IOException ex) {
+				LOG.info(tile + " decode failed: " + ex.getMessage());
+			}
+
+			if (result == null)
+				LOG.info("<<< " + tile);
+			else if (!cached && mCache != null)
+				mCache.put(tile, data, data.length);
+
+			report(c, tile);
+			return result;
+		} finally {
+			mPool.offer(c);
+		}
+	}
+
+	private void readMapData(Connection c, Tile[] tiles, MapReadResult[] results) {
+		if (!hasCache()) {
+			loadTiles(c, tiles, results);
+			return;
+		}
+
+		// serve cached tiles first, then load the missing ones
+		Tile[] missing = new Tile[tiles.length];
+		int[] index = new int[tiles.length];
+		int numMissing = 0;
+
+		for (int i = 0; i < tiles.length; i++) {
+			results[i] = readMemory(tiles[i]);
+			if (results[i] != null)
+				continue;
+
+			results[i] = readCached(c, tiles[i]);
+			if (results[i] == null) {
+				missing[numMissing] = tiles[i];
+				index[numMissing++] = i;
+			} else {
+				report(c, tiles[i]);
+			}
+		}
+
+		if (numMissing == 0)
+			return;
+
+		if (numMissing == tiles.length) {
+			loadTiles(c, tiles, results);
+			return;
+		}
+
+		MapReadResult[] loaded = new MapReadResult[numMissing];
+		loadTiles(c, Arrays.copyOf(missing, numMissing), loaded);
+
+		for (int i = 0; i < numMissing; i++)
+			results[index[i]] = loaded[i];
+	}
+
+	private void loadTiles(Connection c, Tile[] tiles, MapReadResult[] results) {
+		LwHttp conn = c.http;
+
+		int done = 0;
+		while (done < tiles.length) {
+			if (conn.getPipelineDepth() == 1) {
+				results[done] = loadTile(c, tiles[done]);
+				report(c, tiles[done]);
+				done++;
+				continue;
+			}
+
+			int sent = 0;
+			int received = 0;
+			try {
+				sent = conn.sendRequests(tiles, done, tiles.length - done);
+
+				for (; received < sent; received++) {
+					Tile tile = tiles[done + received];
+					c.stats.reset();
+					if (conn.readHeader() == null) {
+						// no response or the connection is out of sync
+						if (conn.status < 0 || conn.status == LwHttp.STATUS_OK)
+							break;
+
+						// error response, its body was skipped
+						LOG.info("<<< " + tile);
+						report(c, tile);
+						continue;
+					}
+
+					MapReadResult result = decodeResponse(c, tile);
+					results[done + received] = result;
+					conn.mLastRequest = System.currentTimeMillis();
+
+					if (result == null)
+						LOG.info("<<< " + tile);
+
+					report(c, tile);
+				}
+			} catch (IOException ex) {
+				LOG.info(tiles[done + received] + " pipelined request failed: "
+				        + ex.getMessage());
+			}
+
+			if (received < sent) {
+				// drop pending responses
+				conn.close();
+
+				if (received == 0) {
+					LOG.info("server closed pipelined connection, using serial requests");
+					conn.setPipelineDepth(1);
+				}
+			} else if (sent == 0) {
+				// could not send request for this tile
+				results[done] = null;
+				received = 1;
+			}
+			done += received;
+		}
+	}
+
+	/**
+	 * @return true when loaded tiles are kept in the memory, off-heap or
+	 *         disk cache, otherwise prefetch() does nothing
+	 */
+	public boolean hasCache() {
+		return mResults != null || mOffHeap != null || mCache != null;
+	}
+
+	/**
+	 * @return true when the tile is in the memory or off-heap cache
+	 */
+	private boolean inMemory(Tile tile) {
+		return (mResults != null && mResults.contains(tile))
+		        || (mOffHeap != null && mOffHeap.contains(tile));
+	}
+
+	/**
+	 * A hit in the off-heap cache materializes a new MapReadResult on the
+	 * heap, as readMapData() returns MapReadResults. This is intended: the
+	 * off-heap cache keeps many tiles without adding to the GC work, and the
+	 * result of a hit is short lived unless the memory cache, which is on by
+	 * default, keeps it for the following hits.
+	 *
+	 * @return the decoded tile from the memory or off-heap cache, or null
+	 */
+	private MapReadResult readMemory(Tile tile) {
+		MapReadResult result = null;
+		if (mResults != null)
+			result = mResults.get(tile);
+
+		if (result == null && mOffHeap != null) {
+			OffHeapTile view = mOffHeap.acquire(tile);
+			if (view != null) {
+				try {
+					result = view.toMapReadResult();
+				} finally {
+					mOffHeap.release(view);
+				}
+				if (mResults != null)
+					mResults.put(tile, result);
+			}
+		}
+
+		if (result != null && mMetrics != null) {
+			TileStats stats = new TileStats();
+			stats.reset();
+			stats.cached = true;
+			stats.success = true;
+			mMetrics.tileLoaded(tile, stats);
+		}
+		return result;
+	}
+
+	private MapReadResult readCached(Connection c, Tile tile) {
+		if (mCache == null)
+			return null;
+
+		byte[] data = mCache.get(tile);
+		if (data == null)
+			return null;
+
+		c.stats.reset();
+		c.stats.cached = true;
+		c.stats.bytes = data.length;
+
+		try {
+			return decode(c, tile, data, data.length);
+		} catch (IOException ex) {
+			LOG.info(tile + " invalid cache entry: " + ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Read and decode the content of the response after readHeader().
+	 *
+	 * @return the result, or null when the tile could not be decoded. The
+	 *         connection can then still be used
+	 * @throws IOException
+	 *             also when the connection was closed before the complete
+	 *             content was read.
+	 */
+	private MapReadResult decodeResponse(Connection c, Tile tile)
+	        throws IOException {
+		LwHttp conn = c.http;
+		TileStats stats = c.stats;
+
+		int length = conn.contentLength;
+		if (c.content.length < length)
+			c.content = new byte[length];
+
+		if (!conn.readContent(c.content))
+			throw new IOException("incomplete content");
+
+		stats.connectTime = conn.connectTime;
+		// attribute connect time only to the first of pipelined responses
+		conn.connectTime = 0;
+		stats.firstByteTime = conn.headerTime - conn.requestTime;
+		stats.transferTime = System.nanoTime() - conn.headerTime;
+		stats.bytes = length;
+
+		MapReadResult result = null;
+		try {
+			result = decode(c, tile, c.content, length);
+		} catch (IOException ex) {
+			LOG.info(tile + " decode failed: " + ex.getMessage());
+		}
+
+		// only cache what could be decoded
+		if (result != null && mCache != null)
+			mCache.put(tile, c.content, length);
+
+		return result;
+	}
+
+	private MapReadResult decode(Connection c, Tile tile, byte[] data, int length)
+	        throws IOException {
+		TileDecoder decoder = c.decoder;
+		TileStats stats = c.stats;
+
+		long start = System.nanoTime();
+		MapReadResult result = null;
+		try {
+			if (mOffHeap != null) {
+				CompactTile compact = null;
+				try {
+					compact = decoder.decodeCompact(data, 0, length, tile);
+				} catch (IOException e) {
+					// coordinates out of range, decode as MapReadResult
+				}
+				if (compact != null) {
+					mOffHeap.put(compact);
+					result = compact.toMapReadResult();
+				}
+			}
+			if (result == null)
+				result = decoder.decode(data, 0, length, tile);
+		} catch (RuntimeException e) {
+			// malformed tile, e.g. a negative array size
+			throw new IOException(e);
+		}
+		stats.decodeTime = System.nanoTime() - start;
+
+		stats.success = (result != null);
+		stats.numLines = decoder.numLines;
+		stats.numPolygons = decoder.numPolygons;
+		stats.numPoints = decoder.numPoints;
+
+		if (result != null && mResults != null)
+			mResults.put(tile, result);
+
+		return result;
+	}
+
+	private void report(Connection c, Tile tile) {
+		if (mMetrics != null)
+			mMetrics.tileLoaded(tile, c.stats);
+	}
+
+	private MapReadResult loadTile(Connection c, Tile tile) {
+		LwHttp conn = c.http;
+
+		c.stats.reset();
+
 		//QueryResult result = QueryResult.SUCCESS;
 		MapReadResult result = null;
 		try {
-			InputStream is;
-			if (conn.sendRequest(tile) && (is = conn.readHeader()) != null) {
-				//conn.cacheBegin(tile, f);
-				result = mTileDecoder.decode(is, conn.contentLength, tile);
+			if (conn.sendRequest(tile) && conn.readHeader() != null) {
+				result = decodeResponse(c, tile);
 			} else {
 				LOG.info( tile + " Network Error");
 				return null;
@@ -73,17 +810,63 @@ public class VtmMapDatabase extends MapDatabase {
 		return result;
 	}
 
+	/**
+	 * @param priority
+	 *            orders pending requests of the 'nio' transport and drops
+	 *            asynchronous requests and prefetches for tiles that are no
+	 *            longer needed, null for FIFO order
+	 */
+	public void setPriority(TilePriority priority) {
+		mPriority = priority;
+		if (mNio != null)
+			mNio.setPriority(priority);
+	}
+
+	/**
+	 * @param metrics
+	 *            receives measurements for each loaded tile, null to disable
+	 */
+	public void setMetrics(MetricsSink metrics) {
+		mMetrics = metrics;
+		if (mConnections == null)
+			return;
+
+		for (Connection c : mConnections)
+			c.http.setMetrics(metrics);
+	}
+
 	@Override
 	public MapFileInfo getMapFileInfo() {
 		return null;
 	}
 
-	TileDecoder mTileDecoder;
 	@Override
 	public boolean hasOpenFile(){
 		return mOpen;
 	}
 
+	/**
+	 * @param options
+	 *            "url": tile server base url (required),
+	 *            "connections": number of parallel keep-alive connections,
+	 *            "transport": "nio" to multiplex the connections on one I/O
+	 *            thread and decode on as many decoder threads,
+	 *            "pipeline": max number of pipelined requests per connection,
+	 *            "cache": directory for the tile cache,
+	 *            "cache-size": max size of the tile cache in MB,
+	 *            "cache-age": max age of cached tiles in seconds,
+	 *            "memory-cache": max size of decoded tiles kept in memory in
+	 *            MB, 0 to disable,
+	 *            "offheap-cache": max size in MB of decoded tiles kept
+	 *            outside of the Java heap, see OffHeapTileStore. Each hit
+	 *            allocates its MapReadResult anew unless the memory cache
+	 *            keeps it. 0 (default) to disable,
+	 *            "dictionary": file or url of the TagDictionary of the
+	 *            server, the static Tags are used when not set,
+	 *            "parallel-decode": number of threads to decode the elements
+	 *            of a large tile, 0 (default) to decode on one thread
+	 * @return FileOpenResult.SUCCESS or error
+	 */
 	public FileOpenResult open(HashMap<String, String> options) {
 		if (mOpen)
 			return FileOpenResult.SUCCESS;
@@ -91,21 +874,181 @@ public class VtmMapDatabase extends MapDatabase {
 		if (options == null || !options.containsKey("url"))
 			return new FileOpenResult("options missing");
 
-		conn = new LwHttp();
+		int numConnections = DEFAULT_CONNECTIONS;
+		if (options.containsKey("connections")) {
+			try {
+				numConnections = Integer.parseInt(options.get("connections"));
+			} catch (NumberFormatException e) {
+				return new FileOpenResult("invalid connections: " + options.get("connections"));
+			}
+			if (numConnections < 1)
+				return new FileOpenResult("invalid connections: " + numConnections);
+		}
 
-		if (!conn.setServer(options.get("url"))) {
-			return new FileOpenResult("invalid url: " + options.get("url"));
+		int pipelineDepth = 1;
+		if (options.containsKey("pipeline")) {
+			try {
+				pipelineDepth = Integer.parseInt(options.get("pipeline"));
+			} catch (NumberFormatException e) {
+				return new FileOpenResult("invalid pipeline: " + options.get("pipeline"));
+			}
 		}
 
-		mOpen = true;
+		boolean nio = false;
+		if (options.containsKey("transport")) {
+			String transport = options.get("transport");
+			if ("nio".equals(transport))
+				nio = true;
+			else if (!"blocking".equals(transport))
+				return new FileOpenResult("invalid transport: " + transport);
+		}
 
-		mTileDecoder = new TileDecoder();
+		TagDictionary dictionary = TagDictionary.DEFAULT;
+		if (options.containsKey("dictionary")) {
+			try {
+				dictionary = TagDictionary.load(options.get("dictionary"));
+			} catch (IOException e) {
+				return new FileOpenResult("cannot load dictionary: " + e.getMessage());
+			}
+			LOG.info("dictionary version " + dictionary.getVersion());
+		}
+
+		DiskTileCache cache = null;
+		if (options.containsKey("cache")) {
+			long size = DEFAULT_CACHE_SIZE;
+			long age = 0;
+			try {
+				if (options.containsKey("cache-size"))
+					size = Long.parseLong(options.get("cache-size"));
+				if (options.containsKey("cache-age"))
+					age = Long.parseLong(options.get("cache-age"));
+			} catch (NumberFormatException e) {
+				return new FileOpenResult("invalid cache options");
+			}
+			// tiles depend on the dictionary they were encoded with. The
+			// cache in 'dir' does not scan the dict-N directories
+			File dir = new File(options.get("cache"));
+			if (dictionary.getVersion() > 0)
+				dir = new File(dir, "dict-" + dictionary.getVersion());
+
+			cache = new DiskTileCache(dir, size * 1024 * 1024, age * 1000);
+		}
+
+		int memorySize = DEFAULT_MEMORY_CACHE_SIZE;
+		if (options.containsKey("memory-cache")) {
+			try {
+				memorySize = Integer.parseInt(options.get("memory-cache"));
+			} catch (NumberFormatException e) {
+				return new FileOpenResult("invalid memory-cache: " + options.get("memory-cache"));
+			}
+		}
+
+		int offHeapSize = 0;
+		if (options.containsKey("offheap-cache")) {
+			try {
+				offHeapSize = Integer.parseInt(options.get("offheap-cache"));
+			} catch (NumberFormatException e) {
+				return new FileOpenResult("invalid offheap-cache: "
+				        + options.get("offheap-cache"));
+			}
+		}
+
+		int parallel = 0;
+		if (options.containsKey("parallel-decode")) {
+			try {
+				parallel = Integer.parseInt(options.get("parallel-decode"));
+			} catch (NumberFormatException e) {
+				return new FileOpenResult("invalid parallel-decode: "
+				        + options.get("parallel-decode"));
+			}
+		}
+
+		Connection[] connections = new Connection[numConnections];
+		for (int i = 0; i < numConnections; i++) {
+			LwHttp conn = new LwHttp();
+
+			if (!conn.setServer(options.get("url"))) {
+				return new FileOpenResult("invalid url: " + options.get("url"));
+			}
+			conn.setPipelineDepth(pipelineDepth);
+			conn.setMetrics(mMetrics);
+			connections[i] = new Connection(conn);
+			connections[i].decoder.setDictionary(dictionary);
+		}
+
+		if (nio) {
+			try {
+				mNio = new NioHttp(options.get("url"), numConnections, pipelineDepth);
+				mNio.setPriority(mPriority);
+				mNio.start();
+			} catch (IOException e) {
+				mNio = null;
+				return new FileOpenResult("invalid url: " + options.get("url"));
+			}
+			mDecoders = Executors.newFixedThreadPool(numConnections, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "VtmDecoder");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		if (parallel > 1) {
+			// own pool: threads waiting in decode() must not block the
+			// threads that decode their elements
+			mParallel = Executors.newFixedThreadPool(parallel, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "VtmParallelDecoder");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			for (Connection c : connections)
+				c.decoder.setParallel(mParallel, parallel, PARALLEL_THRESHOLD);
+		}
+
+		mConnections = connections;
+		mCache = cache;
+		if (memorySize > 0)
+			mResults = new MapResultCache(memorySize * 1024L * 1024L);
+		if (offHeapSize > 0)
+			mOffHeap = new OffHeapTileStore(offHeapSize * 1024L * 1024L, dictionary);
+		mPool = new LinkedBlockingQueue<Connection>();
+		for (Connection c : connections)
+			mPool.offer(c);
+
+		mOpen = true;
 
 		return FileOpenResult.SUCCESS;
 	}
 
 	public void close() {
 		mOpen = false;
-		conn.close();
+
+		if (mNio != null) {
+			mNio.close();
+			mNio = null;
+			mDecoders.shutdown();
+			mDecoders = null;
+		}
+
+		if (mParallel != null) {
+			mParallel.shutdown();
+			mParallel = null;
+		}
+
+		if (mOffHeap != null) {
+			mOffHeap.clear();
+			mOffHeap = null;
+		}
+
+		if (mConnections == null)
+			return;
+
+		for (Connection c : mConnections)
+			c.http.close();
 	}
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.header.FileOpenResult;
+import org.mapsforge.map.reader.header.MapFileInfo;
+
+/**
+ * Reads .vtm tiles from a memory mapped pack file, see VtmPackWriter.
+ * Mapping keeps the pack out of the Java heap, but each tile is still
+ * copied from the mapping into the decoder's read buffer before it is
+ * decoded, see ProtobufDecoder.setInput(ByteBuffer).
+ *
+ * Pack layout (big-endian):
+ *
+ * <pre>
+ * magic 'VTMP', int version, int numTiles
+ * numTiles * (int zoom, int x, int y, long offset, int length), sorted by key()
+ * tile content
+ * </pre>
+ */
+public class VtmPackMapDatabase extends MapDatabase {
+	private static final Logger LOG = Logger.getLogger(VtmPackMapDatabase.class.getName());
+
+	final static int MAGIC = 'V' << 24 | 'T' << 16 | 'M' << 8 | 'P';
+	final static int VERSION = 1;
+
+	final static int HEADER_SIZE = 12;
+	final static int INDEX_ENTRY_SIZE = 24;
+
+	// bounds of the fields of key()
+	private final static int MAX_ZOOM = 31;
+	private final static int MAX_XY = (1 << 29) - 1;
+
+	// tile data is mapped in segments of this size
+	private final static long SEGMENT_SIZE = 1 << 30;
+
+	// 'open' state
+	private boolean mOpen = false;
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private MappedByteBuffer[] mSegments;
+
+	// sorted tile keys and their location in file
+	private long[] mKeys;
+	private long[] mOffsets;
+	private int[] mLengths;
+
+	private volatile TagDictionary mDictionary = TagDictionary.DEFAULT;
+
+	private final ThreadLocal<TileDecoder> mTileDecoder = new ThreadLocal<TileDecoder>() {
+		@Override
+		protected TileDecoder initialValue() {
+			return new TileDecoder();
+		}
+	};
+
+	static long key(int zoom, long x, long y) {
+		return (long) zoom << 58 | x << 29 | y;
+	}
+
+	@Override
+	public MapReadResult readMapData(Tile tile) {
+		ByteBuffer data = getTile(tile);
+		if (data == null) {
+			LOG.info(tile + " not in pack");
+			return null;
+		}
+
+		try {
+			TileDecoder decoder = mTileDecoder.get();
+			decoder.setDictionary(mDictionary);
+			return decoder.decode(data, tile);
+		} catch (IOException ex) {
+			LOG.info(tile + " invalid tile: " + ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @return a view on the tile content or null when the tile is not in the
+	 *         pack.
+	 */
+	ByteBuffer getTile(Tile tile) {
+		int idx = Arrays.binarySearch(mKeys,
+		        key(tile.zoomLevel, tile.tileX, tile.tileY));
+		if (idx < 0)
+			return null;
+
+		long offset = mOffsets[idx];
+		int length = mLengths[idx];
+
+		int segment = (int) (offset / SEGMENT_SIZE);
+		int pos = (int) (offset % SEGMENT_SIZE);
+
+		ByteBuffer data;
+		if (pos + length <= mSegments[segment].capacity()) {
+			data = mSegments[segment].duplicate();
+		} else {
+			// tile crosses segment boundary
+			try {
+				data = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			} catch (IOException ex) {
+				LOG.info(tile + " could not map tile: " + ex.getMessage());
+				return null;
+			}
+			pos = 0;
+		}
+		data.limit(pos + length);
+		data.position(pos);
+
+		return data;
+	}
+
+	/**
+	 * @return all tiles in the pack, ordered by key
+	 */
+	List<Tile> getTiles() {
+		List<Tile> tiles = new ArrayList<Tile>(mKeys.length);
+		long mask = (1L << 29) - 1;
+		for (long key : mKeys)
+			tiles.add(new Tile((key >>> 29) & mask, key & mask, (byte) (key >>> 58)));
+
+		return tiles;
+	}
+
+	@Override
+	public MapFileInfo getMapFileInfo() {
+		return null;
+	}
+
+	@Override
+	public boolean hasOpenFile() {
+		return mOpen;
+	}
+
+	/**
+	 * @param options
+	 *            "file": path of the pack file (required),
+	 *            "dictionary": file or url of the TagDictionary the tiles
+	 *            were encoded with
+	 * @return FileOpenResult.SUCCESS or error
+	 */
+	public FileOpenResult open(HashMap<String, String> options) {
+		if (mOpen)
+			return FileOpenResult.SUCCESS;
+
+		if (options == null || !options.containsKey("file"))
+			return new FileOpenResult("options missing");
+
+		File file = new File(options.get("file"));
+		if (!file.canRead())
+			return new FileOpenResult("cannot read file: " + file);
+
+		TagDictionary dictionary = TagDictionary.DEFAULT;
+		if (options.containsKey("dictionary")) {
+			try {
+				dictionary = TagDictionary.load(options.get("dictionary"));
+			} catch (IOException e) {
+				return new FileOpenResult("cannot load dictionary: " + e.getMessage());
+			}
+		}
+		mDictionary = dictionary;
+
+		try {
+			mFile = new RandomAccessFile(file, "r");
+			mChannel = mFile.getChannel();
+
+			long size = mChannel.size();
+			if (size < HEADER_SIZE) {
+				close();
+				return new FileOpenResult("invalid pack file: " + file);
+			}
+
+			ByteBuffer header = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				close();
+				return new FileOpenResult("invalid pack file: " + file);
+			}
+			int numTiles = header.getInt();
+			long dataStart = HEADER_SIZE + (long) numTiles * INDEX_ENTRY_SIZE;
+			if (numTiles < 0 || dataStart > size) {
+				close();
+				return new FileOpenResult("invalid pack file: " + file);
+			}
+
+			ByteBuffer index = mChannel.map(FileChannel.MapMode.READ_ONLY,
+			        HEADER_SIZE, (long) numTiles * INDEX_ENTRY_SIZE);
+
+			mKeys = new long[numTiles];
+			mOffsets = new long[numTiles];
+			mLengths = new int[numTiles];
+
+			for (int i = 0; i < numTiles; i++) {
+				int zoom = index.getInt();
+				int x = index.getInt();
+				int y = index.getInt();
+				long offset = index.getLong();
+				int length = index.getInt();
+
+				// getTile() must not read outside of the tile data, and
+				// binarySearch() needs unique keys in order
+				if (zoom < 0 || zoom > MAX_ZOOM || x < 0 || x > MAX_XY || y < 0 || y > MAX_XY
+				        || offset < dataStart || length < 0 || offset + length > size
+				        || (i > 0 && key(zoom, x, y) <= mKeys[i - 1])) {
+					close();
+					return new FileOpenResult("invalid pack file: " + file
+					        + ", index entry " + i);
+				}
+
+				mKeys[i] = key(zoom, x, y);
+				mOffsets[i] = offset;
+				mLengths[i] = length;
+			}
+
+			int numSegments = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			mSegments = new MappedByteBuffer[numSegments];
+			for (int i = 0; i < numSegments; i++) {
+				long start = i * SEGMENT_SIZE;
+				mSegments[i] = mChannel.map(FileChannel.MapMode.READ_ONLY, start,
+				        Math.min(SEGMENT_SIZE, size - start));
+			}
+		} catch (IOException ex) {
+			close();
+			return new FileOpenResult("could not read pack file: " + ex.getMessage());
+		}
+
+		mOpen = true;
+
+		return FileOpenResult.SUCCESS;
+	}
+
+	public void close() {
+		mOpen = false;
+		mSegments = null;
+
+		if (mFile != null) {
+			try {
+				mFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				mFile = null;
+				mChannel = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds a VtmPackMapDatabase pack file from a directory of tiles in
+ * 'zoom/x/y.vtm' layout, e.g. a DiskTileCache directory.
+ *
+ * <pre>
+ * usage: VtmPackWriter &lt;tile dir&gt; &lt;pack file&gt;
+ * </pre>
+ */
+public class VtmPackWriter {
+	private final static String TILE_EXT = ".vtm";
+
+	private static class Entry {
+		final int zoom;
+		final int x;
+		final int y;
+		final File file;
+		final long key;
+
+		Entry(int zoom, int x, int y, File file) {
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+			this.file = file;
+			this.key = VtmPackMapDatabase.key(zoom, x, y);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: VtmPackWriter <tile dir> <pack file>");
+			System.exit(1);
+		}
+
+		int num = write(new File(args[0]), new File(args[1]));
+		System.out.println("wrote " + num + " tiles");
+	}
+
+	/**
+	 * @return number of tiles written
+	 */
+	public static int write(File dir, File pack) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+
+		File[] zooms = dir.listFiles();
+		if (zooms == null)
+			throw new IOException("not a directory: " + dir);
+
+		for (File z : zooms) {
+			File[] xs = z.listFiles();
+			if (xs == null)
+				continue;
+			for (File x : xs) {
+				File[] ys = x.listFiles();
+				if (ys == null)
+					continue;
+				for (File y : ys) {
+					String name = y.getName();
+					if (!name.endsWith(TILE_EXT))
+						continue;
+					try {
+						entries.add(new Entry(Integer.parseInt(z.getName()),
+						        Integer.parseInt(x.getName()),
+						        Integer.parseInt(name.substring(0,
+						                name.length() - TILE_EXT.length())),
+						        y));
+					} catch (NumberFormatException e) {
+						System.err.println("skip " + y);
+					}
+				}
+			}
+		}
+
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.key < b.key ? -1 : (a.key == b.key ? 0 : 1);
+			}
+		});
+
+		DataOutputStream out = new DataOutputStream(
+		        new BufferedOutputStream(new FileOutputStream(pack), 1 << 16));
+		try {
+			out.writeInt(VtmPackMapDatabase.MAGIC);
+			out.writeInt(VtmPackMapDatabase.VERSION);
+			out.writeInt(entries.size());
+
+			long offset = VtmPackMapDatabase.HEADER_SIZE
+			        + (long) entries.size() * VtmPackMapDatabase.INDEX_ENTRY_SIZE;
+
+			for (Entry e : entries) {
+				out.writeInt(e.zoom);
+				out.writeInt(e.x);
+				out.writeInt(e.y);
+				out.writeLong(offset);
+				out.writeInt((int) e.file.length());
+				offset += e.file.length();
+			}
+
+			byte[] buf = new byte[1 << 16];
+			for (Entry e : entries) {
+				FileInputStream is = new FileInputStream(e.file);
+				try {
+					int len;
+					long remain = e.file.length();
+					while (remain > 0 && (len = is.read(buf, 0,
+					        (int) Math.min(buf.length, remain))) >= 0) {
+						out.write(buf, 0, len);
+						remain -= len;
+					}
+					if (remain != 0)
+						throw new IOException("file changed while reading: " + e.file);
+				} finally {
+					is.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		return entries.size();
+	}
+}
@@ -18,7 +18,10 @@ package org.mapsforge.map.reader;
 import java.io.File;
 import java.util.HashMap;
 
+import org.mapsforge.core.graphics.Canvas;
 import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.map.layer.Layer;
 import org.mapsforge.map.layer.LayerManager;
@@ -46,29 +49,106 @@ public class VtmRenderLayer extends TileLayer<RendererJob> {
 		return tileRendererLayer;
 	}
 
+	/** tiles beyond the edges of the view, used for prefetching */
+	private final static int PREFETCH_RADIUS = 2;
+
+	/** dispatcher batch size, also the max pipelined requests per connection */
+	private final static int PIPELINE_DEPTH = 4;
+
 	private final VtmMapDatabase mapDatabase;
 	private File mapFile = new File("/");
-	private final MapWorker mapWorker;
+	private final MapWorker[] mapWorkers;
+	private final TileTaskDispatcher dispatcher;
+	private final int numConnections;
+	private final boolean pipelining;
+	private final TilePrefetcher prefetcher;
+	private final ViewportPriority priority;
 	private float textScale;
 	private XmlRenderTheme xmlRenderTheme;
 
 	public VtmRenderLayer(TileCache tileCache, MapViewPosition mapViewPosition,
 	                      LayerManager layerManager,
 	                      GraphicFactory graphicFactory) {
+		this(tileCache, mapViewPosition, layerManager, graphicFactory, 0);
+	}
+
+	/**
+	 * Creates the layer without request pipelining.
+	 */
+	public VtmRenderLayer(TileCache tileCache, MapViewPosition mapViewPosition,
+	                      LayerManager layerManager,
+	                      GraphicFactory graphicFactory, int concurrency) {
+		this(tileCache, mapViewPosition, layerManager, graphicFactory, concurrency, false);
+	}
+
+	/**
+	 * @param concurrency
+	 *            when > 0 queued tiles are loaded and rendered as tasks of
+	 *            up to PIPELINE_DEPTH tiles, with at most 'concurrency'
+	 *            tiles in flight. Otherwise one MapWorker per connection
+	 *            is used.
+	 * @param pipelining
+	 *            send up to PIPELINE_DEPTH requests per connection before
+	 *            reading the responses. Off by default, not every server or
+	 *            proxy handles pipelined requests correctly.
+	 */
+	public VtmRenderLayer(TileCache tileCache, MapViewPosition mapViewPosition,
+	                      LayerManager layerManager,
+	                      GraphicFactory graphicFactory, int concurrency, boolean pipelining) {
 		super(tileCache, mapViewPosition, graphicFactory);
 
+		this.pipelining = pipelining;
+
 		this.mapDatabase = new VtmMapDatabase();
-		DatabaseRenderer databaseRenderer = new DatabaseRenderer(this.mapDatabase, graphicFactory);
 
-		this.mapWorker = new MapWorker(tileCache, this.jobQueue, databaseRenderer, this);
-		this.mapWorker.start();
+		if (concurrency > 0) {
+			this.mapWorkers = new MapWorker[0];
+			this.numConnections = concurrency;
+			this.dispatcher = new TileTaskDispatcher(tileCache, this.jobQueue, this,
+			        this.mapDatabase, graphicFactory, concurrency, PIPELINE_DEPTH);
+			this.dispatcher.start();
+		} else {
+			// one worker per connection so that tiles are loaded concurrently,
+			// DatabaseRenderer is not thread-safe: each worker gets its own
+			this.mapWorkers = new MapWorker[VtmMapDatabase.DEFAULT_CONNECTIONS];
+			for (int i = 0; i < this.mapWorkers.length; i++) {
+				DatabaseRenderer databaseRenderer =
+				        new DatabaseRenderer(this.mapDatabase, graphicFactory);
+
+				this.mapWorkers[i] = new MapWorker(tileCache, this.jobQueue, databaseRenderer, this);
+				this.mapWorkers[i].start();
+			}
+			this.numConnections = this.mapWorkers.length;
+			this.dispatcher = null;
+		}
+
+		this.priority = new ViewportPriority(mapViewPosition, PREFETCH_RADIUS);
+		this.mapDatabase.setPriority(this.priority);
+		if (this.dispatcher != null)
+			this.dispatcher.setPriority(this.priority);
+
+		// started in open()
+		this.prefetcher = new TilePrefetcher(mapViewPosition, this.mapDatabase, PREFETCH_RADIUS);
 
 		this.textScale = 1;
 	}
 
+	@Override
+	public void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas, Point topLeftPoint) {
+		// before jobs for the visible tiles get queued
+		this.priority.setViewSize(canvas.getWidth(), canvas.getHeight());
+
+		super.draw(boundingBox, zoomLevel, canvas, topLeftPoint);
+	}
+
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
+
+		if (this.dispatcher != null)
+			this.dispatcher.finish();
+
+		this.prefetcher.finish();
 	}
 
 	public File getMapFile() {
@@ -86,7 +166,14 @@ public class VtmRenderLayer extends TileLayer<RendererJob> {
 	public void open() {
 		HashMap<String, String> options = new HashMap<String, String>();
 		options.put("url", "http://opensciencemap.org/tiles/vtm/");
-		this.mapDatabase.open(options);
+		options.put("connections", String.valueOf(this.numConnections));
+		if (this.pipelining)
+			options.put("pipeline", String.valueOf(PIPELINE_DEPTH));
+		// prefetched tiles are kept in the memory cache, enabled by default
+		if (this.mapDatabase.open(options).isSuccess()
+		        && this.mapDatabase.hasCache()
+		        && this.prefetcher.getState() == Thread.State.NEW)
+			this.prefetcher.start();
 	}
 
 	public void setTextScale(float textScale) {
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+public class DiskTileCacheTest {
+	private static final Tile TILE1 = new Tile(8800, 5374, (byte) 14);
+	private static final Tile TILE2 = new Tile(8801, 5374, (byte) 14);
+	private static final Tile TILE3 = new Tile(4400, 2687, (byte) 13);
+	private static final Tile TILE4 = new Tile(0, 0, (byte) 0);
+
+	private File dir;
+
+	private static byte[] data(int length, int value) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte) value);
+		return data;
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File f : files)
+				delete(f);
+		file.delete();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("tilecache", "");
+		dir.delete();
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void putGetTest() {
+		DiskTileCache cache = new DiskTileCache(dir, 1000, 0);
+		Assert.assertFalse(cache.contains(TILE1));
+		Assert.assertNull(cache.get(TILE1));
+
+		byte[] data = data(100, 1);
+		cache.put(TILE1, data, 50);
+
+		Assert.assertTrue(cache.contains(TILE1));
+		Assert.assertArrayEquals(Arrays.copyOf(data, 50), cache.get(TILE1));
+		Assert.assertTrue(new File(dir, "14/8800/5374.vtm").isFile());
+		Assert.assertEquals(50, cache.size());
+	}
+
+	@Test
+	public void smallTileNumbersTest() {
+		DiskTileCache cache = new DiskTileCache(dir, 1000, 0);
+		cache.put(TILE4, data(10, 4), 10);
+		Assert.assertArrayEquals(data(10, 4), cache.get(TILE4));
+	}
+
+	@Test
+	public void replaceTest() {
+		DiskTileCache cache = new DiskTileCache(dir, 1000, 0);
+		cache.put(TILE1, data(100, 1), 100);
+		cache.put(TILE1, data(30, 2), 30);
+
+		Assert.assertArrayEquals(data(30, 2), cache.get(TILE1));
+		Assert.assertEquals(30, cache.size());
+	}
+
+	@Test
+	public void evictionTest() {
+		DiskTileCache cache = new DiskTileCache(dir, 300, 0);
+		cache.put(TILE1, data(100, 1), 100);
+		cache.put(TILE2, data(100, 2), 100);
+		cache.put(TILE3, data(100, 3), 100);
+
+		// TILE2 is now the least recently used
+		Assert.assertNotNull(cache.get(TILE1));
+		cache.put(TILE4, data(100, 4), 100);
+
+		Assert.assertTrue(cache.contains(TILE1));
+		Assert.assertFalse(cache.contains(TILE2));
+		Assert.assertTrue(cache.contains(TILE3));
+		Assert.assertTrue(cache.contains(TILE4));
+		Assert.assertFalse(new File(dir, "14/8801/5374.vtm").exists());
+		Assert.assertEquals(300, cache.size());
+	}
+
+	@Test
+	public void maxAgeTest() throws InterruptedException {
+		DiskTileCache cache = new DiskTileCache(dir, 1000, 10);
+		cache.put(TILE1, data(10, 1), 10);
+		Thread.sleep(50);
+
+		Assert.assertNull(cache.get(TILE1));
+		Assert.assertFalse(cache.contains(TILE1));
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void restoreTest() throws IOException {
+		DiskTileCache cache = new DiskTileCache(dir, 1000, 0);
+		cache.put(TILE1, data(100, 1), 100);
+		cache.put(TILE3, data(50, 3), 50);
+
+		// not part of the cache
+		write(new File(dir, "readme.txt"), data(10, 0));
+		write(new File(dir, "dict-2/14/1/1.vtm"), data(10, 0));
+		File tmp = new File(dir, "14/8800/5374.vtm.123.tmp");
+		write(tmp, data(10, 0));
+
+		cache = new DiskTileCache(dir, 1000, 0);
+		Assert.assertEquals(150, cache.size());
+		Assert.assertArrayEquals(data(100, 1), cache.get(TILE1));
+		Assert.assertArrayEquals(data(50, 3), cache.get(TILE3));
+		Assert.assertFalse(cache.contains(new Tile(1, 1, (byte) 14)));
+		Assert.assertFalse(tmp.exists());
+		Assert.assertTrue(new File(dir, "dict-2/14/1/1.vtm").exists());
+	}
+
+	@Test
+	public void restoreTrimTest() throws IOException {
+		DiskTileCache cache = new DiskTileCache(dir, 1000, 0);
+		cache.put(TILE1, data(100, 1), 100);
+		cache.put(TILE2, data(100, 2), 100);
+
+		cache = new DiskTileCache(dir, 150, 0);
+		Assert.assertEquals(100, cache.size());
+	}
+
+	@Test
+	public void changedFileTest() throws IOException {
+		DiskTileCache cache = new DiskTileCache(dir, 1000, 0);
+		cache.put(TILE1, data(100, 1), 100);
+
+		write(new File(dir, "14/8800/5374.vtm"), data(20, 9));
+
+		Assert.assertNull(cache.get(TILE1));
+		Assert.assertFalse(cache.contains(TILE1));
+		Assert.assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+public class LwHttpTest {
+	// a framing error makes the client wait for more data
+	private static final long TIMEOUT = 10000;
+
+	private TestServer server;
+	private LwHttp http;
+
+	private static Tile tile(int x) {
+		return new Tile(x, 7, (byte) 14);
+	}
+
+	/**
+	 * @return content of the next response or null
+	 */
+	private byte[] read() throws IOException {
+		// as VtmMapDatabase does, keeps the connection alive
+		http.mLastRequest = System.currentTimeMillis();
+
+		if (http.readHeader() == null)
+			return null;
+
+		byte[] buf = new byte[http.contentLength];
+		Assert.assertTrue(http.readContent(buf));
+		return buf;
+	}
+
+	private byte[] load(Tile tile) throws IOException {
+		Assert.assertTrue(http.sendRequest(tile));
+		return read();
+	}
+
+	/**
+	 * Load tiles one after another on the keep-alive connection.
+	 */
+	private void loadTiles() throws IOException {
+		for (int x = 0; x < 5; x++)
+			Assert.assertArrayEquals(TestServer.tile(tile(x)), load(tile(x)));
+
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = new TestServer();
+		http = new LwHttp();
+		Assert.assertTrue(http.setServer(server.getUrl()));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		http.close();
+		server.close();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void contentLengthTest() throws IOException {
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void chunkedTest() throws IOException {
+		server.chunked = true;
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void gzipTest() throws IOException {
+		server.gzip = true;
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void chunkedGzipTest() throws IOException {
+		server.chunked = true;
+		server.gzip = true;
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void upperCaseHeaderTest() throws IOException {
+		server.upperCase = true;
+		server.chunked = true;
+		server.gzip = true;
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void errorResponseTest() throws IOException {
+		server.errorX = 2;
+
+		Assert.assertNotNull(load(tile(1)));
+		Assert.assertNull(load(tile(2)));
+		Assert.assertEquals(404, http.status);
+
+		// the body was skipped and the connection is still usable
+		Assert.assertArrayEquals(TestServer.tile(tile(3)), load(tile(3)));
+		Assert.assertEquals(LwHttp.STATUS_OK, http.status);
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void chunkedErrorResponseTest() throws IOException {
+		server.errorX = 2;
+		server.chunked = true;
+
+		Assert.assertNull(load(tile(2)));
+		Assert.assertArrayEquals(TestServer.tile(tile(3)), load(tile(3)));
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void pipelineTest() throws IOException {
+		server.errorX = 1;
+		server.chunked = true;
+		http.setPipelineDepth(4);
+
+		Tile[] tiles = { tile(0), tile(1), tile(2), tile(3), tile(4) };
+		Assert.assertEquals(4, http.sendRequests(tiles, 0, tiles.length));
+
+		Assert.assertArrayEquals(TestServer.tile(tiles[0]), read());
+		Assert.assertNull(read());
+		Assert.assertArrayEquals(TestServer.tile(tiles[2]), read());
+		Assert.assertArrayEquals(TestServer.tile(tiles[3]), read());
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void invalidLengthTest() throws IOException {
+		server.badLengthX = 2;
+
+		Assert.assertTrue(http.sendRequest(tile(2)));
+		try {
+			http.readHeader();
+			Assert.fail("no IOException");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// the connection was closed
+		Assert.assertArrayEquals(TestServer.tile(tile(3)), load(tile(3)));
+		Assert.assertEquals(2, server.getConnections());
+	}
+
+	@Test
+	public void parseStatusTest() throws IOException {
+		byte[] line = "HTTP/1.0 200 OK".getBytes("ISO-8859-1");
+		Assert.assertEquals(200, LwHttp.parseStatus(line, 0, line.length));
+
+		line = "HTTP/1.1 404 Not Found".getBytes("ISO-8859-1");
+		Assert.assertEquals(404, LwHttp.parseStatus(line, 0, line.length));
+
+		line = "ICY 200 OK".getBytes("ISO-8859-1");
+		Assert.assertEquals(-1, LwHttp.parseStatus(line, 0, line.length));
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+public class MapResultCacheTest {
+	private static final Tile TILE1 = new Tile(1, 1, (byte) 14);
+	private static final Tile TILE2 = new Tile(2, 1, (byte) 14);
+	private static final Tile TILE3 = new Tile(3, 1, (byte) 14);
+
+	private static MapReadResult result(Tile tile, int numElements) throws IOException {
+		byte[] data = TestTiles.create(tile.tileX, numElements);
+		return new TileDecoder().decode(data, 0, data.length, tile);
+	}
+
+	@Test
+	public void putGetTest() throws IOException {
+		MapResultCache cache = new MapResultCache(1 << 20);
+		MapReadResult result = result(TILE1, 10);
+
+		Assert.assertNull(cache.get(TILE1));
+		cache.put(TILE1, result);
+
+		Assert.assertTrue(cache.contains(TILE1));
+		Assert.assertSame(result, cache.get(TILE1));
+		Assert.assertFalse(cache.contains(TILE2));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(MapResultCache.estimateSize(result), cache.size());
+	}
+
+	@Test
+	public void estimateSizeTest() throws IOException {
+		long small = MapResultCache.estimateSize(result(TILE1, 1));
+		long large = MapResultCache.estimateSize(result(TILE1, 20));
+		Assert.assertTrue(small > 0);
+		Assert.assertTrue(large > small);
+	}
+
+	@Test
+	public void evictionTest() throws IOException {
+		MapReadResult r1 = result(TILE1, 10);
+		MapReadResult r2 = result(TILE2, 10);
+		MapReadResult r3 = result(TILE3, 10);
+		long size = MapResultCache.estimateSize(r1) + MapResultCache.estimateSize(r2)
+		        + MapResultCache.estimateSize(r3);
+
+		MapResultCache cache = new MapResultCache(size - 1);
+		cache.put(TILE1, r1);
+		cache.put(TILE2, r2);
+
+		// TILE2 is now the least recently used
+		cache.get(TILE1);
+		cache.put(TILE3, r3);
+
+		Assert.assertTrue(cache.contains(TILE1));
+		Assert.assertFalse(cache.contains(TILE2));
+		Assert.assertTrue(cache.contains(TILE3));
+		Assert.assertTrue(cache.size() <= size - 1);
+	}
+
+	@Test
+	public void replaceTest() throws IOException {
+		MapResultCache cache = new MapResultCache(1 << 20);
+		MapReadResult r1 = result(TILE1, 20);
+		MapReadResult r2 = result(TILE1, 2);
+
+		cache.put(TILE1, r1);
+		cache.put(TILE1, r2);
+
+		Assert.assertSame(r2, cache.get(TILE1));
+		Assert.assertEquals(MapResultCache.estimateSize(r2), cache.size());
+	}
+
+	@Test
+	public void tooLargeTest() throws IOException {
+		MapReadResult result = result(TILE1, 20);
+		MapResultCache cache = new MapResultCache(MapResultCache.estimateSize(result) - 1);
+
+		cache.put(TILE1, result);
+		Assert.assertFalse(cache.contains(TILE1));
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void clearTest() throws IOException {
+		MapResultCache cache = new MapResultCache(1 << 20);
+		cache.put(TILE1, result(TILE1, 5));
+		cache.put(TILE2, result(TILE2, 5));
+		cache.clear();
+
+		Assert.assertFalse(cache.contains(TILE1));
+		Assert.assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+public class NioHttpTest {
+	private static final long TIMEOUT = 10000;
+	private static final int NUM_TILES = 8;
+
+	private TestServer server;
+	private NioHttp http;
+
+	static class Result implements NioHttp.Callback {
+		final CountDownLatch done = new CountDownLatch(1);
+		final boolean drop;
+
+		volatile byte[] data;
+		volatile boolean failed;
+		volatile boolean cancelled;
+
+		Result(boolean drop) {
+			this.drop = drop;
+		}
+
+		@Override
+		public void completed(Tile tile, byte[] data) {
+			this.data = data;
+			done.countDown();
+		}
+
+		@Override
+		public void failed(Tile tile) {
+			failed = true;
+			done.countDown();
+		}
+
+		@Override
+		public boolean cancel(Tile tile) {
+			cancelled = true;
+			if (drop)
+				done.countDown();
+			return drop;
+		}
+
+		void await() throws InterruptedException {
+			Assert.assertTrue("no callback", done.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	private static Tile tile(int x) {
+		return new Tile(x, 7, (byte) 14);
+	}
+
+	private Result[] request(boolean drop) throws InterruptedException {
+		Result[] results = new Result[NUM_TILES];
+		for (int x = 0; x < NUM_TILES; x++) {
+			results[x] = new Result(drop);
+			http.request(tile(x), results[x]);
+		}
+		for (Result r : results)
+			r.await();
+		return results;
+	}
+
+	private void loadTiles() throws InterruptedException {
+		Result[] results = request(false);
+		for (int x = 0; x < NUM_TILES; x++) {
+			Assert.assertFalse(results[x].failed);
+			Assert.assertArrayEquals(TestServer.tile(tile(x)), results[x].data);
+		}
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = new TestServer();
+		http = new NioHttp(server.getUrl(), 1, 4);
+		http.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		http.close();
+		server.close();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void contentLengthTest() throws InterruptedException {
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void chunkedTest() throws InterruptedException {
+		server.chunked = true;
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void gzipTest() throws InterruptedException {
+		server.gzip = true;
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void chunkedGzipTest() throws InterruptedException {
+		server.chunked = true;
+		server.gzip = true;
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void upperCaseHeaderTest() throws InterruptedException {
+		server.upperCase = true;
+		server.chunked = true;
+		server.gzip = true;
+		loadTiles();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void errorResponseTest() throws InterruptedException {
+		server.errorX = 2;
+		Result[] results = request(false);
+
+		Assert.assertTrue(results[2].failed);
+		Assert.assertNull(results[2].data);
+		for (int x = 3; x < NUM_TILES; x++)
+			Assert.assertArrayEquals(TestServer.tile(tile(x)), results[x].data);
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void chunkedErrorResponseTest() throws InterruptedException {
+		server.errorX = 2;
+		server.chunked = true;
+		Result[] results = request(false);
+
+		Assert.assertTrue(results[2].failed);
+		for (int x = 3; x < NUM_TILES; x++)
+			Assert.assertArrayEquals(TestServer.tile(tile(x)), results[x].data);
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void cancelTest() throws InterruptedException {
+		http.setPriority(new TilePriority() {
+			@Override
+			public double getPriority(Tile tile) {
+				return tile.tileX % 2 == 0 ? -1 : tile.tileX;
+			}
+		});
+		Result[] results = request(true);
+
+		for (int x = 0; x < NUM_TILES; x++) {
+			if (x % 2 == 0) {
+				Assert.assertTrue(results[x].cancelled);
+				Assert.assertNull(results[x].data);
+				Assert.assertFalse(results[x].failed);
+			} else {
+				Assert.assertFalse(results[x].cancelled);
+				Assert.assertArrayEquals(TestServer.tile(tile(x)), results[x].data);
+			}
+		}
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void keepCancelledTest() throws InterruptedException {
+		http.setPriority(new TilePriority() {
+			@Override
+			public double getPriority(Tile tile) {
+				return -1;
+			}
+		});
+
+		// the callback refuses to drop the requests
+		Result[] results = request(false);
+		for (int x = 0; x < NUM_TILES; x++) {
+			Assert.assertTrue(results[x].cancelled);
+			Assert.assertArrayEquals(TestServer.tile(tile(x)), results[x].data);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+public class OffHeapTileStoreTest {
+	// one slab of four 1k chunks or two 2k chunks
+	private static final int SLAB_SIZE = 1 << 12;
+
+	private static Tile tile(int x) {
+		return new Tile(x, 1, (byte) 14);
+	}
+
+	/**
+	 * @return a tile that fits in a 1k chunk
+	 */
+	private static CompactTile small(int x) throws IOException {
+		return TestTiles.compact(tile(x), x, 1);
+	}
+
+	/**
+	 * @return a tile that needs a 2k chunk
+	 */
+	private static CompactTile medium(int x) throws IOException {
+		return TestTiles.compact(tile(x), x, 20);
+	}
+
+	private static OffHeapTileStore store(int numSlabs) {
+		return new OffHeapTileStore(numSlabs * SLAB_SIZE, SLAB_SIZE, TagDictionary.DEFAULT);
+	}
+
+	private static String dump(CompactTile tile) {
+		return TestTiles.dump(tile.toMapReadResult());
+	}
+
+	@Test
+	public void putAcquireTest() throws IOException {
+		OffHeapTileStore store = store(4);
+		CompactTile tile = medium(1);
+
+		Assert.assertTrue(store.put(tile));
+		Assert.assertTrue(store.contains(tile.tile));
+		Assert.assertEquals(1, store.getNumTiles());
+
+		OffHeapTile view = store.acquire(tile.tile);
+		Assert.assertNotNull(view);
+		Assert.assertEquals(dump(tile), TestTiles.dump(view.toMapReadResult()));
+		store.release(view);
+
+		Assert.assertEquals(dump(tile), dump(store.get(tile.tile)));
+		Assert.assertNull(store.acquire(tile(2)));
+	}
+
+	@Test
+	public void replaceTest() throws IOException {
+		OffHeapTileStore store = store(1);
+		CompactTile v1 = TestTiles.compact(tile(1), 1, 1);
+		CompactTile v2 = TestTiles.compact(tile(1), 2, 3);
+
+		store.put(v1);
+		store.put(v2);
+
+		Assert.assertEquals(1, store.getNumTiles());
+		Assert.assertEquals(dump(v2), dump(store.get(tile(1))));
+	}
+
+	@Test
+	public void lruEvictionTest() throws IOException {
+		OffHeapTileStore store = store(1);
+		for (int x = 0; x < 4; x++)
+			Assert.assertTrue(store.put(small(x)));
+
+		// tile 1 is now the least recently used
+		store.release(store.acquire(tile(0)));
+		Assert.assertTrue(store.put(small(4)));
+
+		Assert.assertEquals(4, store.getNumTiles());
+		Assert.assertTrue(store.contains(tile(0)));
+		Assert.assertFalse(store.contains(tile(1)));
+		Assert.assertTrue(store.contains(tile(4)));
+		Assert.assertEquals(SLAB_SIZE, store.size());
+	}
+
+	@Test
+	public void pinnedTest() throws IOException {
+		OffHeapTileStore store = store(1);
+		CompactTile pinned = small(0);
+		store.put(pinned);
+
+		OffHeapTile view = store.acquire(pinned.tile);
+		for (int x = 1; x < 10; x++)
+			Assert.assertTrue(store.put(small(x)));
+
+		// not evicted while acquired, and its chunk is not reused
+		Assert.assertTrue(store.contains(pinned.tile));
+		Assert.assertEquals(dump(pinned), TestTiles.dump(view.toMapReadResult()));
+		store.release(view);
+
+		Assert.assertTrue(store.put(small(10)));
+		Assert.assertFalse(store.contains(pinned.tile));
+	}
+
+	@Test
+	public void allPinnedTest() throws IOException {
+		OffHeapTileStore store = store(1);
+		OffHeapTile[] views = new OffHeapTile[4];
+		for (int x = 0; x < 4; x++) {
+			store.put(small(x));
+			views[x] = store.acquire(tile(x));
+		}
+
+		Assert.assertFalse(store.put(small(4)));
+		Assert.assertFalse(store.contains(tile(4)));
+
+		store.release(views[2]);
+		Assert.assertTrue(store.put(small(4)));
+		Assert.assertFalse(store.contains(tile(2)));
+	}
+
+	@Test
+	public void reassignSlabTest() throws IOException {
+		OffHeapTileStore store = store(1);
+		for (int x = 0; x < 4; x++)
+			store.put(small(x));
+
+		// the only slab is emptied and split into 2k chunks
+		Assert.assertTrue(store.put(medium(4)));
+		Assert.assertEquals(1, store.getNumTiles());
+		Assert.assertEquals(SLAB_SIZE, store.size());
+		Assert.assertEquals(dump(medium(4)), dump(store.get(tile(4))));
+	}
+
+	@Test
+	public void tooLargeTest() throws IOException {
+		OffHeapTileStore store = new OffHeapTileStore(1 << 10, 1 << 10, TagDictionary.DEFAULT);
+		Assert.assertTrue(store.put(small(1)));
+
+		// the previous version is dropped too
+		Assert.assertFalse(store.put(TestTiles.compact(tile(1), 1, 20)));
+		Assert.assertFalse(store.contains(tile(1)));
+	}
+
+	@Test
+	public void clearTest() throws IOException {
+		OffHeapTileStore store = store(2);
+		CompactTile tile = medium(1);
+		store.put(tile);
+		store.put(small(2));
+
+		OffHeapTile view = store.acquire(tile.tile);
+		store.clear();
+
+		Assert.assertEquals(0, store.getNumTiles());
+		Assert.assertEquals(0, store.size());
+		Assert.assertFalse(store.contains(tile.tile));
+		Assert.assertEquals(dump(tile), TestTiles.dump(view.toMapReadResult()));
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProtobufDecoderTest {
+	private static final int[] VALUES = { 0, 1, 127, 128, 300, 16383, 16384, 1 << 21,
+	        (1 << 28) - 1, 1 << 28, Integer.MAX_VALUE, -1, -300, Integer.MIN_VALUE };
+
+	private static byte[] varints(int[] values) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int v : values)
+			TestTiles.writeVarint(out, v);
+		return out.toByteArray();
+	}
+
+	private static byte[] packedField(int[] values, boolean zigzag) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] data = TestTiles.packed(values, zigzag);
+		TestTiles.writeVarint(out, data.length);
+		out.write(data, 0, data.length);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void decodeVarint32Test() throws IOException {
+		byte[] data = varints(VALUES);
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInput(data, 0, data.length);
+		for (int v : VALUES)
+			Assert.assertEquals(v, decoder.decodeVarint32());
+		Assert.assertEquals(data.length, decoder.position());
+	}
+
+	@Test
+	public void decodeVarint32StreamTest() throws IOException {
+		byte[] data = varints(VALUES);
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInputStream(new ByteArrayInputStream(data), data.length);
+		for (int v : VALUES)
+			Assert.assertEquals(v, decoder.decodeVarint32());
+	}
+
+	@Test
+	public void decodeVarint32OffsetTest() throws IOException {
+		byte[] data = varints(VALUES);
+		byte[] buf = new byte[data.length + 20];
+		System.arraycopy(data, 0, buf, 10, data.length);
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInput(buf, 10, data.length);
+		for (int v : VALUES)
+			Assert.assertEquals(v, decoder.decodeVarint32());
+	}
+
+	@Test
+	public void truncatedVarint32Test() {
+		byte[] data = varints(new int[] { Integer.MAX_VALUE, -1 });
+
+		for (int length = 0; length < data.length; length++) {
+			// continuation bits after the end must not be read
+			byte[] buf = new byte[data.length + 8];
+			Arrays.fill(buf, (byte) 0xff);
+			System.arraycopy(data, 0, buf, 0, length);
+
+			ProtobufDecoder decoder = new ProtobufDecoder();
+			decoder.setInput(buf, 0, length);
+			try {
+				decoder.decodeVarint32();
+				decoder.decodeVarint32();
+				Assert.fail("no exception for length " + length);
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void malformedVarint32Test() throws IOException {
+		byte[] data = new byte[12];
+		Arrays.fill(data, (byte) 0x80);
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInput(data, 0, data.length);
+		decoder.decodeVarint32();
+	}
+
+	@Test
+	public void decodeVarintArrayTest() throws IOException {
+		short[] values = { 0, 1, 127, 128, 4095, 16384, Short.MAX_VALUE };
+		int[] ints = new int[values.length];
+		for (int i = 0; i < values.length; i++)
+			ints[i] = values[i];
+
+		byte[] data = packedField(ints, false);
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInput(data, 0, data.length);
+
+		short[] array = new short[values.length];
+		decoder.decodeVarintArray(values.length, array);
+		Assert.assertArrayEquals(values, array);
+	}
+
+	@Test
+	public void decodePackedTest() throws IOException {
+		int[] values = { 3, 0, 150, 1 << 20, Integer.MAX_VALUE };
+		byte[] data = packedField(values, false);
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInput(data, 0, data.length);
+
+		Assert.assertEquals(values.length, decoder.decodePacked(false));
+		for (int i = 0; i < values.length; i++)
+			Assert.assertEquals(values[i], decoder.packedValues[i]);
+	}
+
+	@Test
+	public void decodePackedDeltaTest() throws IOException {
+		// x and y deltas are interleaved
+		int[] deltas = { 10, 20, -3, 5, 100, -200, -7, 0 };
+		byte[] data = packedField(deltas, true);
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInput(data, 0, data.length);
+		Assert.assertEquals(deltas.length, decoder.decodePacked(true));
+
+		int x = 0;
+		int y = 0;
+		for (int i = 0; i < deltas.length; i += 2) {
+			x += deltas[i];
+			y += deltas[i + 1];
+			Assert.assertEquals(x, decoder.packedValues[i]);
+			Assert.assertEquals(y, decoder.packedValues[i + 1]);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedPackedTest() throws IOException {
+		byte[] data = packedField(new int[] { 1, 2, 300 }, false);
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInput(data, 0, data.length - 1);
+		decoder.decodePacked(false);
+	}
+
+	@Test
+	public void decodeStringTest() throws IOException {
+		byte[] string = "Straße".getBytes("UTF-8");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TestTiles.writeVarint(out, string.length);
+		out.write(string, 0, string.length);
+		byte[] data = out.toByteArray();
+
+		ProtobufDecoder decoder = new ProtobufDecoder();
+		decoder.setInput(data, 0, data.length);
+		Assert.assertEquals("Straße", decoder.decodeString());
+
+		decoder.setInput(data, 0, data.length - 1);
+		try {
+			decoder.decodeString();
+			Assert.fail("no exception for truncated string");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TagDictionaryTest {
+	private static final String DICTIONARY =
+	        "# test\n"
+	        + "version 2\n"
+	        + "offset 16\n"
+	        + "key highway\n"
+	        + "value residential\n"
+	        + "key name\n"
+	        + "\n"
+	        + "value primary\n"
+	        + "value Straße\n";
+
+	private static TagDictionary read(String text) throws IOException {
+		return TagDictionary.read(new ByteArrayInputStream(text.getBytes("UTF-8")));
+	}
+
+	private static String[] strings(int n, long seed) {
+		Random random = new Random(seed);
+		String[] strings = new String[n];
+		for (int i = 0; i < n; i++)
+			strings[i] = Integer.toString(i, 36) + ":" + Long.toString(random.nextLong(), 36);
+		return strings;
+	}
+
+	private static void check(String[] strings) {
+		TagDictionary.PerfectHash hash = new TagDictionary.PerfectHash(strings);
+		for (int i = 0; i < strings.length; i++)
+			Assert.assertEquals(strings[i], i, hash.indexOf(strings[i]));
+
+		Assert.assertEquals(-1, hash.indexOf("missing"));
+		Assert.assertEquals(-1, hash.indexOf(""));
+		Assert.assertEquals(-1, hash.indexOf(null));
+	}
+
+	@Test
+	public void perfectHashTest() {
+		int[] sizes = { 0, 1, 2, 3, 4, 5, 17, 100, 1000, 20000 };
+		for (int n : sizes)
+			check(strings(n, n));
+
+		// same String.hashCode()
+		check(new String[] { "Aa", "BB", "AaAa", "BBBB", "AaBB", "BBAa" });
+	}
+
+	@Test
+	public void defaultTest() {
+		TagDictionary dict = TagDictionary.DEFAULT;
+		Assert.assertEquals(0, dict.getVersion());
+
+		for (int i = 0; i < Tags.keys.length; i++)
+			Assert.assertEquals(Tags.keys[i], dict.getKey(dict.getKeyIndex(Tags.keys[i])));
+		for (int i = 0; i < Tags.values.length; i++)
+			Assert.assertEquals(Tags.values[i],
+			        dict.getValue(dict.getValueIndex(Tags.values[i])));
+	}
+
+	@Test
+	public void readTest() throws IOException {
+		TagDictionary dict = read(DICTIONARY);
+
+		Assert.assertEquals(2, dict.getVersion());
+		Assert.assertEquals(16, dict.getOffset());
+
+		Assert.assertEquals("highway", dict.getKey(0));
+		Assert.assertEquals("name", dict.getKey(1));
+		Assert.assertNull(dict.getKey(2));
+		Assert.assertNull(dict.getKey(-1));
+		Assert.assertEquals("Straße", dict.getValue(2));
+		Assert.assertNull(dict.getValue(3));
+
+		Assert.assertEquals(1, dict.getKeyIndex("name"));
+		Assert.assertEquals(1, dict.getValueIndex("primary"));
+		Assert.assertEquals(-1, dict.getKeyIndex("primary"));
+
+		// keys are interned, see TagSet
+		Assert.assertSame("highway", dict.getKey(0));
+	}
+
+	@Test
+	public void tagTest() throws IOException {
+		TagDictionary dict = read(DICTIONARY);
+
+		Assert.assertEquals("highway", dict.getTag(0, 1).key);
+		Assert.assertEquals("primary", dict.getTag(0, 1).value);
+		Assert.assertSame(dict.getTag(0, 1), dict.getTag(0, 1));
+
+		Assert.assertNull(dict.getTag(2, 0));
+		Assert.assertNull(dict.getTag(0, 3));
+		Assert.assertNull(dict.getTag(-1, 0));
+	}
+
+	@Test(expected = IOException.class)
+	public void missingVersionTest() throws IOException {
+		read("offset 16\nkey highway\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void smallOffsetTest() throws IOException {
+		read("version 1\noffset 1\nkey highway\nkey name\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void largeOffsetTest() throws IOException {
+		read("version 1\noffset 40000\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void duplicateTest() throws IOException {
+		read("version 1\noffset 16\nvalue yes\nvalue yes\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidLineTest() throws IOException {
+		read("version 1\noffset 16\ntag highway\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidNumberTest() throws IOException {
+		read("version one\noffset 16\n");
+	}
+}
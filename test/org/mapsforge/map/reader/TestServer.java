@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Minimal keep-alive HTTP server for the transport tests. Answers
+ * 'GET /tiles/zoom/x/y.vtm' with the TestTiles content of the tile.
+ */
+class TestServer implements Runnable {
+	private final ServerSocket mSocket;
+
+	/** send bodies with 'Transfer-Encoding: chunked' */
+	volatile boolean chunked;
+	/** gzip compress tile bodies */
+	volatile boolean gzip;
+	/** send header names and tokens in upper case */
+	volatile boolean upperCase;
+	/** answer tiles with this x with '404 Not Found' and a body */
+	volatile long errorX = -1;
+	/** answer tiles with this x with content that fails the decoder */
+	volatile long corruptX = -1;
+	/** answer tiles with this x with a tile length of almost 2 GB */
+	volatile long badLengthX = -1;
+	/** milliseconds to wait before each response */
+	volatile int delay;
+
+	private int mConnections;
+	private int mRequests;
+
+	TestServer() throws IOException {
+		mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(this, "TestServer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	String getUrl() {
+		return "http://127.0.0.1:" + mSocket.getLocalPort() + "/tiles/";
+	}
+
+	synchronized int getConnections() {
+		return mConnections;
+	}
+
+	synchronized int getRequests() {
+		return mRequests;
+	}
+
+	void close() throws IOException {
+		mSocket.close();
+	}
+
+	/**
+	 * @return content of the tile as decoded by the client
+	 */
+	static byte[] tile(Tile tile) {
+		return TestTiles.create(tile.tileX * 31 + tile.tileY, 5);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			final Socket s;
+			try {
+				s = mSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			synchronized (this) {
+				mConnections++;
+			}
+			Thread t = new Thread("TestServer connection") {
+				@Override
+				public void run() {
+					try {
+						serve(s);
+					} catch (IOException e) {
+						// client closed
+					} finally {
+						try {
+							s.close();
+						} catch (IOException e) {
+						}
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void serve(Socket s) throws IOException {
+		InputStream is = s.getInputStream();
+		OutputStream os = new BufferedOutputStream(s.getOutputStream());
+
+		String line;
+		while ((line = readLine(is)) != null) {
+			if (!line.startsWith("GET "))
+				continue;
+
+			String path = line.split(" ")[1];
+			// skip the request header
+			while ((line = readLine(is)) != null && line.length() > 0);
+
+			synchronized (this) {
+				mRequests++;
+			}
+
+			String[] p = path.substring(0, path.length() - 4).split("/");
+			Tile tile = new Tile(Long.parseLong(p[p.length - 2]),
+			        Long.parseLong(p[p.length - 1]),
+			        Byte.parseByte(p[p.length - 3]));
+
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			respond(os, tile);
+			os.flush();
+		}
+	}
+
+	private void respond(OutputStream os, Tile tile) throws IOException {
+		StringBuilder header = new StringBuilder();
+		byte[] body;
+
+		if (tile.tileX == errorX) {
+			header.append("HTTP/1.1 404 Not Found\r\n");
+			body = ("<html>no tile " + tile + "</html>").getBytes("ISO-8859-1");
+		} else {
+			header.append("HTTP/1.1 200 OK\r\n");
+			body = TestTiles.response(tile.tileX == corruptX ? TestTiles.corrupt() : tile(tile));
+			if (tile.tileX == badLengthX)
+				body[0] = (byte) 0x7f;
+			if (gzip) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				GZIPOutputStream gz = new GZIPOutputStream(out);
+				gz.write(body);
+				gz.close();
+				body = out.toByteArray();
+				header.append(name("Content-Encoding")).append(": ")
+				        .append(name("gzip")).append("\r\n");
+			}
+		}
+
+		if (chunked) {
+			header.append(name("Transfer-Encoding")).append(": ")
+			        .append(name("chunked")).append("\r\n\r\n");
+			os.write(header.toString().getBytes("ISO-8859-1"));
+
+			// small chunks so that chunk headers are split across reads
+			for (int pos = 0; pos < body.length; pos += 100) {
+				int len = Math.min(100, body.length - pos);
+				os.write((Integer.toHexString(len) + "\r\n").getBytes("ISO-8859-1"));
+				os.write(body, pos, len);
+				os.write("\r\n".getBytes("ISO-8859-1"));
+				os.flush();
+			}
+			os.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+		} else {
+			header.append(name("Content-Length")).append(": ")
+			        .append(body.length).append("\r\n\r\n");
+			os.write(header.toString().getBytes("ISO-8859-1"));
+			os.write(body);
+		}
+	}
+
+	private String name(String name) {
+		return upperCase ? name.toUpperCase(Locale.ENGLISH) : name;
+	}
+
+	private static String readLine(InputStream is) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = is.read()) >= 0) {
+			if (c == '\n')
+				return sb.toString();
+			if (c != '\r')
+				sb.append((char) c);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Writes small tiles in the .vtm format for the tests.
+ */
+final class TestTiles {
+	private final static int TAG_TILE_VERSION = 1;
+	private final static int TAG_TILE_NUM_TAGS = 11;
+	private final static int TAG_TILE_NUM_KEYS = 12;
+	private final static int TAG_TILE_TAGS = 16;
+	private final static int TAG_TILE_LINE = 21;
+	private final static int TAG_TILE_POINT = 23;
+	private final static int TAG_ELEM_NUM_INDICES = 1;
+	private final static int TAG_ELEM_NUM_TAGS = 2;
+	private final static int TAG_ELEM_TAGS = 11;
+	private final static int TAG_ELEM_INDEX = 12;
+	private final static int TAG_ELEM_COORDS = 13;
+
+	private final static int WIRE_VARINT = 0;
+	private final static int WIRE_BYTES = 2;
+
+	private TestTiles() {
+	}
+
+	/**
+	 * @return tile content with numElements lines and one point, the
+	 *         coordinates depend on seed
+	 */
+	static byte[] create(long seed, int numElements) {
+		Random random = new Random(seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		writeVarint(out, TAG_TILE_VERSION << 3 | WIRE_VARINT);
+		writeVarint(out, 4);
+
+		// two tags of the static Tags table
+		writeVarint(out, TAG_TILE_NUM_TAGS << 3 | WIRE_VARINT);
+		writeVarint(out, 2);
+		writeField(out, TAG_TILE_TAGS, packed(new int[] { 0, 0, 1, 1 }, false));
+
+		for (int i = 0; i < numElements; i++) {
+			int points = 2 + random.nextInt(20);
+			int[] coords = new int[points * 2];
+			for (int j = 0; j < coords.length; j++)
+				coords[j] = random.nextInt(200) - 100;
+
+			writeField(out, TAG_TILE_LINE, element(new int[] { i & 1 },
+			        new int[] { points }, coords));
+		}
+
+		writeField(out, TAG_TILE_POINT, element(new int[] { 0 }, null,
+		        new int[] { random.nextInt(4096), random.nextInt(4096) }));
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return tile content with a negative number of keys, TileDecoder
+	 *         fails with a RuntimeException
+	 */
+	static byte[] corrupt() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeVarint(out, TAG_TILE_VERSION << 3 | WIRE_VARINT);
+		writeVarint(out, 4);
+		writeVarint(out, TAG_TILE_NUM_KEYS << 3 | WIRE_VARINT);
+		writeVarint(out, 0xffffffffL);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return tile content as sent by the server: a 4 byte big endian length
+	 *         followed by the tile
+	 */
+	static byte[] response(byte[] tile) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			DataOutputStream os = new DataOutputStream(out);
+			os.writeInt(tile.length);
+			os.write(tile);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	static CompactTile compact(Tile tile, long seed, int numElements) throws IOException {
+		byte[] data = create(seed, numElements);
+		return new TileDecoder().decodeCompact(data, 0, data.length, tile);
+	}
+
+	/**
+	 * @return text of all elements of result, to compare results
+	 */
+	static String dump(MapReadResult result) {
+		StringBuilder sb = new StringBuilder();
+		for (PoiWayBundle bundle : result.poiWayBundles) {
+			for (Way way : bundle.ways) {
+				sb.append("way ").append(way.layer);
+				for (Tag tag : way.tags)
+					sb.append(' ').append(tag.key).append('=').append(tag.value);
+				for (LatLong[] ring : way.latLongs) {
+					sb.append(" |");
+					for (LatLong p : ring)
+						sb.append(' ').append(p.latitude).append(',').append(p.longitude);
+				}
+				sb.append('\n');
+			}
+			for (PointOfInterest poi : bundle.pois) {
+				sb.append("poi ").append(poi.layer);
+				for (Tag tag : poi.tags)
+					sb.append(' ').append(tag.key).append('=').append(tag.value);
+				sb.append(' ').append(poi.position.latitude)
+				        .append(',').append(poi.position.longitude).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static byte[] element(int[] tags, int[] index, int[] coords) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		writeVarint(out, TAG_ELEM_NUM_TAGS << 3 | WIRE_VARINT);
+		writeVarint(out, tags.length);
+		writeField(out, TAG_ELEM_TAGS, packed(tags, false));
+
+		if (index != null) {
+			writeVarint(out, TAG_ELEM_NUM_INDICES << 3 | WIRE_VARINT);
+			writeVarint(out, index.length);
+			writeField(out, TAG_ELEM_INDEX, packed(index, false));
+		}
+
+		writeField(out, TAG_ELEM_COORDS, packed(coords, true));
+		return out.toByteArray();
+	}
+
+	static byte[] packed(int[] values, boolean zigzag) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int v : values)
+			writeVarint(out, zigzag ? (v << 1) ^ (v >> 31) : v);
+		return out.toByteArray();
+	}
+
+	static void writeField(ByteArrayOutputStream out, int tag, byte[] data) {
+		writeVarint(out, tag << 3 | WIRE_BYTES);
+		writeVarint(out, data.length);
+		out.write(data, 0, data.length);
+	}
+
+	/**
+	 * Write v as unsigned varint, negative values take 10 bytes.
+	 */
+	static void writeVarint(ByteArrayOutputStream out, long v) {
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) (v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.GeometryBuffer.GeometryType;
+
+public class TileDecoderTest {
+	private static final Tile TILE = new Tile(8800, 5370, (byte) 14);
+	private static final int PARALLELISM = 3;
+
+	private ExecutorService executor;
+	private TileDecoder parallel;
+
+	/**
+	 * @return result of decoding data on one thread
+	 */
+	private static MapReadResult serial(byte[] data) throws IOException {
+		return new TileDecoder().decode(data, 0, data.length, TILE);
+	}
+
+	private MapReadResult parallel(byte[] data) throws IOException {
+		return parallel.decode(data, 0, data.length, TILE);
+	}
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(PARALLELISM - 1);
+		parallel = new TileDecoder();
+		// decode all tiles in parallel
+		parallel.setParallel(executor, PARALLELISM, 0);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void parallelTest() throws IOException {
+		for (int n = 1; n < 20; n++) {
+			byte[] data = TestTiles.create(n, n);
+			MapReadResult result = parallel(data);
+
+			Assert.assertEquals(TestTiles.dump(serial(data)), TestTiles.dump(result));
+			Assert.assertEquals(n, parallel.numLines);
+			Assert.assertEquals(1, parallel.numPoints);
+		}
+	}
+
+	@Test
+	public void fewElementsTest() throws IOException {
+		// tile without elements
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TestTiles.writeVarint(out, 1 << 3);
+		TestTiles.writeVarint(out, 4);
+		byte[] empty = out.toByteArray();
+
+		Assert.assertEquals("", TestTiles.dump(parallel(empty)));
+		Assert.assertEquals(0, parallel.numPoints);
+
+		// only one point
+		byte[] data = TestTiles.create(1, 0);
+		Assert.assertEquals(TestTiles.dump(serial(data)), TestTiles.dump(parallel(data)));
+	}
+
+	@Test
+	public void workerFailureTest() throws IOException {
+		final byte[] data = TestTiles.create(1, 30);
+		final String expected = TestTiles.dump(serial(data));
+
+		// fails on the point, the last element, decoded by a worker
+		parallel.setFilter(new ElementFilter() {
+			@Override
+			public boolean accept(GeometryType type, short[] tagIds, int numTags,
+			        TagSet tileTags) {
+				if (type == GeometryType.POINT)
+					throw new IllegalStateException("filter failed");
+				return true;
+			}
+		});
+
+		try {
+			parallel(data);
+			Assert.fail("no IOException");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		// the workers can be used again
+		parallel.setFilter(null);
+		Assert.assertEquals(expected, TestTiles.dump(parallel(data)));
+	}
+
+	@Test
+	public void ownRangeFailureTest() throws IOException {
+		byte[] data = TestTiles.create(1, 30);
+
+		// fails on the first element, decoded by the calling thread
+		parallel.setFilter(new ElementFilter() {
+			@Override
+			public boolean accept(GeometryType type, short[] tagIds, int numTags,
+			        TagSet tileTags) {
+				throw new IllegalStateException("filter failed");
+			}
+		});
+
+		try {
+			parallel(data);
+			Assert.fail("no IOException");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+}
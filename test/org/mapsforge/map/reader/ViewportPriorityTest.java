@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.model.MapViewPosition;
+
+public class ViewportPriorityTest {
+	private static final double LATITUDE = 53.0;
+	private static final double LONGITUDE = 8.8;
+	private static final byte ZOOM = 14;
+	private static final int RADIUS = 2;
+
+	private ViewportPriority priority;
+	// center of the view in tiles
+	private double cx;
+	private double cy;
+
+	private Tile tile(double dx, double dy) {
+		return new Tile((long) Math.floor(cx + dx), (long) Math.floor(cy + dy), ZOOM);
+	}
+
+	@Before
+	public void setUp() {
+		MapViewPosition position = new MapViewPosition();
+		position.setCenter(new LatLong(LATITUDE, LONGITUDE));
+		position.setZoomLevel(ZOOM);
+
+		priority = new ViewportPriority(position, RADIUS);
+		cx = TilePrefetcher.longitudeToTileX(LONGITUDE, ZOOM);
+		cy = TilePrefetcher.latitudeToTileY(LATITUDE, ZOOM);
+	}
+
+	@Test
+	public void unknownViewSizeTest() {
+		Assert.assertTrue(priority.getPriority(tile(100, 0)) >= 0);
+	}
+
+	@Test
+	public void visibleTilesTest() {
+		// 10 x 6 tiles
+		priority.setViewSize(2560, 1600);
+
+		for (double dx = -5; dx <= 5; dx += 0.25)
+			for (double dy = -3; dy <= 3; dy += 0.25)
+				Assert.assertTrue(priority.getPriority(tile(dx, dy)) >= 0);
+	}
+
+	@Test
+	public void outsideViewTest() {
+		priority.setViewSize(2560, 1600);
+
+		// within the prefetch radius around the view
+		Assert.assertTrue(priority.getPriority(tile(5 + RADIUS, 0)) >= 0);
+		Assert.assertTrue(priority.getPriority(tile(0, -3 - RADIUS)) >= 0);
+
+		Assert.assertEquals(-1, priority.getPriority(tile(5 + RADIUS + 2, 0)), 0);
+		Assert.assertEquals(-1, priority.getPriority(tile(0, 3 + RADIUS + 2)), 0);
+	}
+
+	@Test
+	public void distanceTest() {
+		priority.setViewSize(2560, 1600);
+
+		double center = priority.getPriority(tile(0, 0));
+		double near = priority.getPriority(tile(1, 1));
+		double far = priority.getPriority(tile(-4, 2));
+		Assert.assertTrue(center < near);
+		Assert.assertTrue(near < far);
+	}
+
+	@Test
+	public void zoomLevelTest() {
+		priority.setViewSize(2560, 1600);
+
+		Tile parent = new Tile((long) cx / 2, (long) cy / 2, (byte) (ZOOM - 1));
+		Tile child = new Tile((long) (cx * 2), (long) (cy * 2), (byte) (ZOOM + 1));
+
+		// after all tiles of the current level
+		double edge = priority.getPriority(tile(5 + RADIUS, 3 + RADIUS));
+		Assert.assertTrue(priority.getPriority(parent) > edge);
+		Assert.assertTrue(priority.getPriority(child) > edge);
+
+		Assert.assertEquals(-1, priority.getPriority(
+		        new Tile((long) cx / 4, (long) cy / 4, (byte) (ZOOM - 2))), 0);
+		Assert.assertEquals(-1, priority.getPriority(
+		        new Tile((long) (cx * 4), (long) (cy * 4), (byte) (ZOOM + 2))), 0);
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+public class VtmMapDatabaseTest {
+	private static final long TIMEOUT = 10000;
+
+	private TestServer server;
+	private VtmMapDatabase database;
+
+	private static Tile tile(int x) {
+		return new Tile(x, 7, (byte) 14);
+	}
+
+	private static String expected(Tile tile) throws IOException {
+		byte[] data = TestServer.tile(tile);
+		return TestTiles.dump(new TileDecoder().decode(data, 0, data.length, tile));
+	}
+
+	private void open(String... options) {
+		HashMap<String, String> map = new HashMap<String, String>();
+		map.put("url", server.getUrl());
+		for (int i = 0; i < options.length; i += 2)
+			map.put(options[i], options[i + 1]);
+
+		Assert.assertTrue(database.open(map).isSuccess());
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = new TestServer();
+		database = new VtmMapDatabase();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		database.close();
+		server.close();
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void memoryCacheTest() throws IOException {
+		open();
+
+		MapReadResult result = database.readMapData(tile(1));
+		Assert.assertEquals(expected(tile(1)), TestTiles.dump(result));
+
+		// shared from the memory cache, which is enabled by default
+		Assert.assertSame(result, database.readMapData(tile(1)));
+		Assert.assertEquals(1, server.getRequests());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void memoryCacheDisabledTest() throws IOException {
+		open("memory-cache", "0");
+
+		MapReadResult result = database.readMapData(tile(1));
+		Assert.assertNotSame(result, database.readMapData(tile(1)));
+		Assert.assertEquals(2, server.getRequests());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void offHeapCacheTest() throws IOException {
+		open("memory-cache", "0", "offheap-cache", "1");
+
+		MapReadResult result = database.readMapData(tile(1));
+		MapReadResult hit = database.readMapData(tile(1));
+		Assert.assertEquals(1, server.getRequests());
+
+		// materialized anew on each hit without the memory cache
+		Assert.assertNotSame(result, hit);
+		Assert.assertNotSame(hit, database.readMapData(tile(1)));
+		Assert.assertEquals(expected(tile(1)), TestTiles.dump(hit));
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void sharedLoadTest() throws Exception {
+		open("memory-cache", "0", "connections", "2");
+		server.delay = 500;
+
+		// both requests arrive while the first one is loading
+		final MapReadResult[] results = new MapReadResult[2];
+		Thread[] threads = new Thread[2];
+		for (int i = 0; i < 2; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					results[index] = database.readMapData(tile(1));
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		Assert.assertNotNull(results[0]);
+		Assert.assertSame(results[0], results[1]);
+		Assert.assertEquals(1, server.getRequests());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void prefetchTest() throws IOException {
+		open();
+		Assert.assertTrue(database.hasCache());
+
+		Tile[] tiles = { tile(1), tile(2) };
+		Assert.assertEquals(2, database.prefetch(tiles));
+		Assert.assertEquals(2, server.getRequests());
+
+		// served without a network read
+		Assert.assertEquals(expected(tiles[0]), TestTiles.dump(database.readMapData(tiles[0])));
+		Assert.assertEquals(2, server.getRequests());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void prefetchNioTest() throws Exception {
+		open("transport", "nio");
+
+		Tile[] tiles = { tile(1), tile(2) };
+		Assert.assertEquals(2, database.prefetch(tiles));
+		while (server.getRequests() < 2)
+			Thread.sleep(10);
+
+		// joins the prefetch or is served from the cache
+		Assert.assertEquals(expected(tiles[1]), TestTiles.dump(database.readMapData(tiles[1])));
+		Assert.assertEquals(2, server.getRequests());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void prefetchWithoutCacheTest() throws IOException {
+		open("memory-cache", "0");
+		Assert.assertFalse(database.hasCache());
+
+		Assert.assertEquals(0, database.prefetch(new Tile[] { tile(1) }));
+		Assert.assertEquals(0, server.getRequests());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void prefetchSkipsLoadingTest() throws Exception {
+		open("connections", "2");
+		server.delay = 1000;
+
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				database.prefetch(new Tile[] { tile(1) });
+			}
+		};
+		first.start();
+		while (server.getConnections() == 0)
+			Thread.sleep(10);
+
+		// does not wait for the load of the first prefetch
+		long start = System.currentTimeMillis();
+		Assert.assertEquals(1, database.prefetch(new Tile[] { tile(1) }));
+		Assert.assertTrue(System.currentTimeMillis() - start < server.delay / 2);
+
+		first.join();
+		Assert.assertEquals(1, server.getRequests());
+	}
+
+	/**
+	 * @return results of a batch of five tiles
+	 */
+	private MapReadResult[] readBatch() throws IOException {
+		Tile[] tiles = new Tile[5];
+		for (int x = 0; x < tiles.length; x++)
+			tiles[x] = tile(x);
+
+		MapReadResult[] results = new MapReadResult[tiles.length];
+		database.readMapData(tiles, results);
+
+		for (int x = 0; x < tiles.length; x++) {
+			if (x != 2)
+				Assert.assertEquals(expected(tiles[x]), TestTiles.dump(results[x]));
+		}
+		return results;
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void pipelineCorruptTileTest() throws IOException {
+		open("pipeline", "4", "connections", "1");
+		server.corruptX = 2;
+
+		Assert.assertNull(readBatch()[2]);
+
+		// the response was read completely, the connection is kept
+		Assert.assertEquals(5, server.getRequests());
+		Assert.assertEquals(1, server.getConnections());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void pipelineInvalidLengthTest() throws IOException {
+		open("pipeline", "4", "connections", "1");
+		server.badLengthX = 2;
+
+		Assert.assertNull(readBatch()[2]);
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void corruptTileNioTest() throws IOException {
+		open("transport", "nio", "connections", "1");
+		server.corruptX = 2;
+
+		Tile[] tiles = { tile(1), tile(2), tile(3) };
+		MapReadResult[] results = new MapReadResult[tiles.length];
+		database.readMapData(tiles, results);
+
+		Assert.assertEquals(expected(tiles[0]), TestTiles.dump(results[0]));
+		Assert.assertNull(results[1]);
+		Assert.assertEquals(expected(tiles[2]), TestTiles.dump(results[2]));
+
+		// the failed tile is requested again, not joined to the failed load
+		server.corruptX = -1;
+		Assert.assertEquals(expected(tiles[1]), TestTiles.dump(database.readMapData(tiles[1])));
+		Assert.assertEquals(4, server.getRequests());
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+public class VtmPackTest {
+	// in key order: by zoom, x, y
+	private static final Tile[] TILES = {
+	        new Tile(0, 0, (byte) 0),
+	        new Tile(4400, 2687, (byte) 13),
+	        new Tile(8800, 5374, (byte) 14),
+	        new Tile(8800, 5375, (byte) 14),
+	        new Tile(8801, 2, (byte) 14) };
+
+	private File dir;
+	private File pack;
+	private VtmPackMapDatabase database;
+
+	private static void write(File file, byte[] data) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File f : files)
+				delete(f);
+		file.delete();
+	}
+
+	private static byte[] data(Tile tile) {
+		return TestTiles.create(tile.tileX * 31 + tile.tileY, (int) (tile.tileX % 7));
+	}
+
+	private static String expected(Tile tile) throws IOException {
+		byte[] data = data(tile);
+		return TestTiles.dump(new TileDecoder().decode(data, 0, data.length, tile));
+	}
+
+	private boolean open() {
+		HashMap<String, String> options = new HashMap<String, String>();
+		options.put("file", pack.getPath());
+		return database.open(options).isSuccess();
+	}
+
+	/**
+	 * Overwrite the int at 'offset' of the pack.
+	 */
+	private void patch(long offset, int value) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(pack, "rw");
+		try {
+			file.seek(offset);
+			file.writeInt(value);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("vtmpack", "");
+		dir.delete();
+		pack = new File(dir, "tiles.pack");
+		database = new VtmPackMapDatabase();
+
+		// written in reverse to check the sorting
+		for (int i = TILES.length - 1; i >= 0; i--) {
+			Tile t = TILES[i];
+			write(new File(dir, "tiles/" + t.zoomLevel + "/" + t.tileX + "/" + t.tileY
+			        + ".vtm"), data(t));
+		}
+		write(new File(dir, "tiles/14/8800/readme.txt"), new byte[1]);
+	}
+
+	@After
+	public void tearDown() {
+		database.close();
+		delete(dir);
+	}
+
+	@Test
+	public void roundTripTest() throws IOException {
+		Assert.assertEquals(TILES.length, VtmPackWriter.write(new File(dir, "tiles"), pack));
+		Assert.assertTrue(open());
+
+		Assert.assertEquals(Arrays.asList(TILES), database.getTiles());
+		for (Tile t : TILES)
+			Assert.assertEquals(expected(t), TestTiles.dump(database.readMapData(t)));
+
+		Assert.assertNull(database.readMapData(new Tile(8801, 5374, (byte) 14)));
+	}
+
+	@Test
+	public void emptyPackTest() throws IOException {
+		File empty = new File(dir, "empty");
+		empty.mkdirs();
+		Assert.assertEquals(0, VtmPackWriter.write(empty, pack));
+		Assert.assertTrue(open());
+
+		Assert.assertTrue(database.getTiles().isEmpty());
+		Assert.assertNull(database.readMapData(TILES[0]));
+	}
+
+	@Test
+	public void invalidMagicTest() throws IOException {
+		VtmPackWriter.write(new File(dir, "tiles"), pack);
+		patch(0, 0);
+		Assert.assertFalse(open());
+	}
+
+	@Test
+	public void invalidOffsetTest() throws IOException {
+		VtmPackWriter.write(new File(dir, "tiles"), pack);
+
+		// offset of the last tile beyond the end of the file
+		long entry = VtmPackMapDatabase.HEADER_SIZE
+		        + (TILES.length - 1) * VtmPackMapDatabase.INDEX_ENTRY_SIZE;
+		patch(entry + 12, 0);
+		patch(entry + 16, Integer.MAX_VALUE);
+		Assert.assertFalse(open());
+	}
+
+	@Test
+	public void unsortedIndexTest() throws IOException {
+		VtmPackWriter.write(new File(dir, "tiles"), pack);
+
+		// zoom of the first entry after that of the second
+		patch(VtmPackMapDatabase.HEADER_SIZE, 20);
+		Assert.assertFalse(open());
+	}
+}